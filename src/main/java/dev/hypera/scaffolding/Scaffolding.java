@@ -24,10 +24,26 @@ package dev.hypera.scaffolding;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import kotlin.Pair;
+import dev.hypera.scaffolding.region.Region;
+import dev.hypera.scaffolding.schematic.BuildScheduler;
 import dev.hypera.scaffolding.schematic.Schematic;
+import dev.hypera.scaffolding.schematic.SchematicInfo;
+import dev.hypera.scaffolding.schematic.SchematicProbe;
 import dev.hypera.scaffolding.schematic.impl.MCEditSchematic;
 import dev.hypera.scaffolding.schematic.impl.SpongeSchematic;
+import net.minestom.server.coordinate.Point;
+import net.minestom.server.instance.Instance;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jglrxavpok.hephaistos.nbt.*;
@@ -80,4 +96,94 @@ public class Scaffolding {
         return fromStream(new FileInputStream(file));
     }
 
+    /**
+     * Reads the header of a schematic without decoding its blocks
+     * @param inputStream Schematic input
+     * @return schematic info, or null if the format is not recognised
+     * @throws IOException if the input stream is invalid
+     * @throws NBTException if the schematic is invalid
+     */
+    public static @Nullable SchematicInfo probe(@NotNull InputStream inputStream) throws IOException, NBTException {
+        return SchematicProbe.probe(new BufferedInputStream(new GZIPInputStream(inputStream)));
+    }
+
+    /**
+     * Reads the header of a schematic file without decoding its blocks
+     * @param path Schematic path
+     * @return schematic info, or null if the format is not recognised
+     * @throws IOException if the file is invalid
+     * @throws NBTException if the schematic is invalid
+     */
+    public static @Nullable SchematicInfo probe(@NotNull Path path) throws IOException, NBTException {
+        if (!Files.exists(path)) throw new FileNotFoundException("Invalid Schematic: File does not exist");
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            return probe(inputStream);
+        }
+    }
+
+    /**
+     * Reads the headers of all schematics in a directory in parallel, on a pool of up to one thread per processor
+     * that is shut down afterwards. Files that cannot be read or are not schematics are skipped.
+     * @param directory Schematic directory
+     * @return schematic info by path, sorted by path
+     * @throws IOException if the directory cannot be listed
+     */
+    public static @NotNull Map<Path, SchematicInfo> probeDirectory(@NotNull Path directory) throws IOException {
+        AtomicInteger threadId = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "Scaffolding-Probe-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            return probeDirectory(directory, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Reads the headers of all schematics in a directory in parallel. Files that cannot be read or are not
+     * schematics are skipped.
+     * @param directory Schematic directory
+     * @param executor executor to read the files on, which should allow blocking I/O
+     * @return schematic info by path, sorted by path
+     * @throws IOException if the directory cannot be listed
+     */
+    public static @NotNull Map<Path, SchematicInfo> probeDirectory(@NotNull Path directory, @NotNull Executor executor) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(Files::isRegularFile).toList();
+        }
+
+        Map<Path, SchematicInfo> schematics = new ConcurrentSkipListMap<>();
+        CompletableFuture<?>[] futures = new CompletableFuture[files.size()];
+        for (int i = 0; i < futures.length; i++) {
+            Path path = files.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    SchematicInfo info = probe(path);
+                    if (info != null) schematics.put(path, info);
+                } catch (IOException | NBTException ignored) {
+                    // Not a schematic
+                }
+            }, executor);
+        }
+        CompletableFuture.allOf(futures).join();
+        return schematics;
+    }
+
+    /**
+     * Pastes a schematic while it is still being decoded, using the default {@link BuildScheduler}. Blocks are
+     * placed in slabs of up to 16 layers, so placing starts before the whole stream has been read and only a few
+     * slabs are held in memory at once.
+     * @param inputStream Schematic input, closed once it has been read, or once the paste ends if it never started
+     * @param instance instance to paste into
+     * @param position position to paste at
+     * @return future completed with the pasted region once every block has been placed
+     */
+    public static @NotNull CompletableFuture<Region> pasteStream(@NotNull InputStream inputStream, @NotNull Instance instance, @NotNull Point position) {
+        return BuildScheduler.getDefault().submit(inputStream, instance, position);
+    }
+
 }
@@ -0,0 +1,321 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import dev.hypera.scaffolding.Scaffolding;
+import dev.hypera.scaffolding.schematic.Schematic;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.minestom.server.instance.block.Block;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Bakes a {@link SchematicWorldTemplate} into Anvil region files, so servers can load the world with a region file
+ * chunk loader instead of compiling the schematics on every start.
+ * <br><br>
+ * Chunks are encoded and compressed in parallel, and written with section palettes built straight from the
+ * compiled state ids. Light is not written, so the chunks are marked as unlit.
+ * <br>
+ * Can also be run as a main class, see {@link #main(String[])}.
+ */
+public final class AnvilExporter {
+
+    private static final int REGION_SIZE = 32;
+    private static final int SECTOR_SIZE = 4096;
+    private static final int MAX_SECTORS = 255;
+    private static final byte COMPRESSION_ZLIB = 2;
+    private static final int MIN_BITS_PER_BLOCK = 4;
+    private static final String DEFAULT_BIOME = "minecraft:plains";
+    private static final int OVERWORLD_MIN_SECTION = -4;
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    private AnvilExporter() {}
+
+    /**
+     * Exports a template. Existing region files covering the template are replaced.
+     * @param template The template.
+     * @param directory The region directory, created if it does not exist.
+     * @param dataVersion The data version written to every chunk, which must match the Minecraft version of the
+     *                    server loading the region files.
+     * @return The number of chunks written.
+     * @throws IOException if a region file could not be written.
+     */
+    public static int export(@NotNull SchematicWorldTemplate template, @NotNull Path directory, int dataVersion) throws IOException {
+        Files.createDirectories(directory);
+
+        // Encode and compress every chunk in parallel, grouped by region
+        Map<Long, List<EncodedChunk>> regions;
+        try {
+            regions = template.getChunks().long2ObjectEntrySet().parallelStream()
+                    .map(entry -> encode(entry, dataVersion))
+                    .collect(Collectors.groupingByConcurrent(chunk ->
+                            ChunkUtils.getChunkIndex(Math.floorDiv(chunk.chunkX(), REGION_SIZE), Math.floorDiv(chunk.chunkZ(), REGION_SIZE))));
+
+            regions.entrySet().parallelStream().forEach(region -> {
+                int regionX = ChunkUtils.getChunkCoordX(region.getKey());
+                int regionZ = ChunkUtils.getChunkCoordZ(region.getKey());
+                Path path = directory.resolve("r." + regionX + "." + regionZ + ".mca");
+                try {
+                    writeRegion(path, region.getValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return template.getChunkCount();
+    }
+
+    /**
+     * Exports schematics to region files.
+     * <br><br>
+     * Usage: {@code <data version> <region directory> <schematic>[@x,y,z]...}
+     * @param args The arguments.
+     */
+    public static void main(String[] args) throws IOException, NBTException {
+        if (args.length < 3) {
+            System.err.println("Usage: AnvilExporter <data version> <region directory> <schematic>[@x,y,z]...");
+            System.exit(1);
+            return;
+        }
+
+        int dataVersion = Integer.parseInt(args[0]);
+        SchematicWorldTemplate.Builder builder = SchematicWorldTemplate.builder();
+        for (int i = 2; i < args.length; i++) {
+            String[] parts = args[i].split("@", 2);
+            Schematic schematic = Scaffolding.fromPath(Path.of(parts[0]));
+            if (schematic == null) throw new NBTException("Invalid Schematic: Unknown format: " + parts[0]);
+
+            if (parts.length == 1) {
+                builder.addSchematic(schematic);
+            } else {
+                String[] position = parts[1].split(",");
+                if (position.length != 3) throw new IllegalArgumentException("Invalid position: " + parts[1]);
+                builder.addSchematic(schematic, Integer.parseInt(position[0]), Integer.parseInt(position[1]), Integer.parseInt(position[2]));
+            }
+        }
+
+        long start = System.nanoTime();
+        int chunks = export(builder.build(), Path.of(args[1]), dataVersion);
+        System.out.printf("Exported %d chunks in %d ms%n", chunks, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static @NotNull EncodedChunk encode(@NotNull Long2ObjectMap.Entry<ChunkTemplate> entry, int dataVersion) {
+        int chunkX = ChunkUtils.getChunkCoordX(entry.getLongKey());
+        int chunkZ = ChunkUtils.getChunkCoordZ(entry.getLongKey());
+        ChunkTemplate template = entry.getValue();
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeByte(TAG_COMPOUND);
+                out.writeUTF("");
+
+                writeTag(out, TAG_INT, "DataVersion");
+                out.writeInt(dataVersion);
+                writeTag(out, TAG_INT, "xPos");
+                out.writeInt(chunkX);
+                writeTag(out, TAG_INT, "zPos");
+                out.writeInt(chunkZ);
+                writeTag(out, TAG_INT, "yPos");
+                out.writeInt(Math.min(OVERWORLD_MIN_SECTION, template.getMinSection()));
+                writeTag(out, TAG_STRING, "Status");
+                out.writeUTF("full");
+                writeTag(out, TAG_LONG, "LastUpdate");
+                out.writeLong(0);
+                writeTag(out, TAG_LONG, "InhabitedTime");
+                out.writeLong(0);
+                writeTag(out, TAG_BYTE, "isLightOn");
+                out.writeByte(0);
+
+                int sectionCount = 0;
+                for (int sectionY = template.getMinSection(); sectionY < template.getMaxSection(); sectionY++) {
+                    if (template.getSection(sectionY) != null) sectionCount++;
+                }
+
+                writeTag(out, TAG_LIST, "sections");
+                out.writeByte(TAG_COMPOUND);
+                out.writeInt(sectionCount);
+                for (int sectionY = template.getMinSection(); sectionY < template.getMaxSection(); sectionY++) {
+                    short[] stateIds = template.getSection(sectionY);
+                    if (stateIds != null) writeSection(out, sectionY, stateIds);
+                }
+
+                out.writeByte(TAG_END);
+            }
+            return new EncodedChunk(chunkX, chunkZ, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeSection(@NotNull DataOutputStream out, int sectionY, short @NotNull [] stateIds) throws IOException {
+        writeTag(out, TAG_BYTE, "Y");
+        out.writeByte(sectionY);
+
+        // Build the palette in order of first appearance
+        short[] palette = new short[ChunkTemplate.SECTION_SIZE];
+        int[] indices = new int[ChunkTemplate.SECTION_SIZE];
+        int paletteSize = 0;
+        for (int index = 0; index < ChunkTemplate.SECTION_SIZE; index++) {
+            short stateId = stateIds[index];
+            if (index > 0 && stateId == stateIds[index - 1]) {
+                indices[index] = indices[index - 1];
+                continue;
+            }
+
+            int paletteIndex = 0;
+            while (paletteIndex < paletteSize && palette[paletteIndex] != stateId) paletteIndex++;
+            if (paletteIndex == paletteSize) palette[paletteSize++] = stateId;
+            indices[index] = paletteIndex;
+        }
+
+        writeTag(out, TAG_COMPOUND, "block_states");
+        writeTag(out, TAG_LIST, "palette");
+        out.writeByte(TAG_COMPOUND);
+        out.writeInt(paletteSize);
+        for (int i = 0; i < paletteSize; i++) writeBlockState(out, palette[i]);
+
+        if (paletteSize > 1) {
+            int bits = Math.max(MIN_BITS_PER_BLOCK, Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize - 1));
+            int valuesPerLong = Long.SIZE / bits;
+            long[] data = new long[(ChunkTemplate.SECTION_SIZE + valuesPerLong - 1) / valuesPerLong];
+            for (int index = 0; index < ChunkTemplate.SECTION_SIZE; index++) {
+                data[index / valuesPerLong] |= (long) indices[index] << ((index % valuesPerLong) * bits);
+            }
+
+            writeTag(out, TAG_LONG_ARRAY, "data");
+            out.writeInt(data.length);
+            for (long value : data) out.writeLong(value);
+        }
+        out.writeByte(TAG_END);
+
+        writeTag(out, TAG_COMPOUND, "biomes");
+        writeTag(out, TAG_LIST, "palette");
+        out.writeByte(TAG_STRING);
+        out.writeInt(1);
+        out.writeUTF(DEFAULT_BIOME);
+        out.writeByte(TAG_END);
+
+        out.writeByte(TAG_END);
+    }
+
+    private static void writeBlockState(@NotNull DataOutputStream out, short stateId) throws IOException {
+        Block block = Block.fromStateId(stateId);
+        if (block == null) throw new IllegalStateException("Invalid block state id: " + stateId);
+
+        writeTag(out, TAG_STRING, "Name");
+        out.writeUTF(block.name());
+
+        Map<String, String> properties = block.properties();
+        if (!properties.isEmpty()) {
+            writeTag(out, TAG_COMPOUND, "Properties");
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                writeTag(out, TAG_STRING, property.getKey());
+                out.writeUTF(property.getValue());
+            }
+            out.writeByte(TAG_END);
+        }
+        out.writeByte(TAG_END);
+    }
+
+    private static void writeTag(@NotNull DataOutputStream out, int type, @NotNull String name) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(name);
+    }
+
+    private static void writeRegion(@NotNull Path path, @NotNull List<EncodedChunk> chunks) throws IOException {
+        byte[] header = new byte[SECTOR_SIZE * 2];
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        List<EncodedChunk> sorted = new ArrayList<>(chunks);
+        sorted.sort((first, second) -> Integer.compare(first.headerIndex(), second.headerIndex()));
+
+        int sector = 2;
+        for (EncodedChunk chunk : sorted) {
+            int length = chunk.data().length + 1;
+            int sectors = (Integer.BYTES + length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            if (sectors > MAX_SECTORS) {
+                throw new IOException("Chunk " + chunk.chunkX() + ", " + chunk.chunkZ() + " is too large for a region file");
+            }
+
+            int location = chunk.headerIndex() * Integer.BYTES;
+            header[location] = (byte) (sector >> 16);
+            header[location + 1] = (byte) (sector >> 8);
+            header[location + 2] = (byte) sector;
+            header[location + 3] = (byte) sectors;
+
+            int time = SECTOR_SIZE + location;
+            header[time] = (byte) (timestamp >> 24);
+            header[time + 1] = (byte) (timestamp >> 16);
+            header[time + 2] = (byte) (timestamp >> 8);
+            header[time + 3] = (byte) timestamp;
+
+            out.writeInt(length);
+            out.writeByte(COMPRESSION_ZLIB);
+            out.write(chunk.data());
+            out.write(new byte[sectors * SECTOR_SIZE - Integer.BYTES - length]);
+            sector += sectors;
+        }
+
+        try (OutputStream file = Files.newOutputStream(path)) {
+            file.write(header);
+            body.writeTo(file);
+        }
+    }
+
+    private record EncodedChunk(int chunkX, int chunkZ, byte @NotNull [] data) {
+
+        private int headerIndex() {
+            return Math.floorMod(chunkX, REGION_SIZE) + Math.floorMod(chunkZ, REGION_SIZE) * REGION_SIZE;
+        }
+
+    }
+
+}
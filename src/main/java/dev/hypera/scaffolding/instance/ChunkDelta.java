@@ -0,0 +1,213 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.Section;
+import net.minestom.server.instance.palette.Palette;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes the difference between a chunk and its {@link ChunkTemplate} as palette compressed section deltas.
+ * <br><br>
+ * Each changed section is stored as its changed positions (a sorted list, or a bitmask once that is smaller),
+ * a palette of the new state ids, and the palette indices packed into longs.
+ * <br>
+ * Only block states are encoded, block entity data and handlers are not part of a delta.
+ */
+final class ChunkDelta {
+
+    private static final int SPARSE_LIMIT = 256;
+    private static final int MASK_LONGS = ChunkTemplate.SECTION_SIZE / Long.SIZE;
+
+    private ChunkDelta() {}
+
+    /**
+     * Computes the delta between a chunk and its template. The caller must hold the chunk's lock.
+     * @param chunk The chunk.
+     * @param template The template, or null if the chunk has no schematic data.
+     * @return The encoded delta, an empty array if the chunk matches the template.
+     */
+    static byte @NotNull [] diff(@NotNull Chunk chunk, @Nullable ChunkTemplate template) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        short[] positions = new short[ChunkTemplate.SECTION_SIZE];
+        short[] values = new short[ChunkTemplate.SECTION_SIZE];
+
+        try {
+            List<Section> sections = chunk.getSections();
+            int sectionCount = 0;
+            for (int i = 0; i < sections.size(); i++) {
+                int sectionY = chunk.getMinSection() + i;
+                short[] base = template == null ? null : template.getSection(sectionY);
+                Palette palette = sections.get(i).blockPalette();
+
+                int changed = 0;
+                for (int index = 0; index < ChunkTemplate.SECTION_SIZE; index++) {
+                    int stateId = palette.get(index & 15, index >> 8, (index >> 4) & 15);
+                    int baseId = base == null ? 0 : base[index];
+                    if (stateId == baseId) continue;
+
+                    positions[changed] = (short) index;
+                    values[changed] = (short) stateId;
+                    changed++;
+                }
+
+                if (changed == 0) continue;
+                writeSection(out, sectionY, positions, values, changed);
+                sectionCount++;
+            }
+
+            if (sectionCount == 0) return new byte[0];
+            byte[] sectionData = bytes.toByteArray();
+            ByteArrayOutputStream result = new ByteArrayOutputStream(sectionData.length + Short.BYTES);
+            new DataOutputStream(result).writeShort(sectionCount);
+            result.write(sectionData);
+            return result.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies an encoded delta to the section arrays of a chunk.
+     * <br>
+     * Arrays in {@code sections} are treated as shared and are copied before they are modified.
+     * @param delta The encoded delta.
+     * @param minSection The section y coordinate of {@code sections[0]}.
+     * @param sections The section arrays, null entries are treated as air.
+     */
+    static void apply(byte @NotNull [] delta, int minSection, short @Nullable [][] sections) {
+        if (delta.length == 0) return;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+
+        try {
+            int sectionCount = in.readUnsignedShort();
+            for (int i = 0; i < sectionCount; i++) {
+                int sectionY = in.readShort();
+                int changed = in.readUnsignedShort();
+                short[] palette = new short[in.readUnsignedShort()];
+                for (int p = 0; p < palette.length; p++) palette[p] = in.readShort();
+
+                short[] positions = readPositions(in, changed);
+                long[] packed = new long[in.readUnsignedShort()];
+                for (int p = 0; p < packed.length; p++) packed[p] = in.readLong();
+
+                int index = sectionY - minSection;
+                if (index < 0 || index >= sections.length) continue;
+
+                short[] target = sections[index] == null ? new short[ChunkTemplate.SECTION_SIZE] : sections[index].clone();
+                int bits = bitsFor(palette.length);
+                for (int entry = 0; entry < changed; entry++) {
+                    target[positions[entry]] = palette[unpack(packed, bits, entry)];
+                }
+                sections[index] = target;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeSection(@NotNull DataOutputStream out, int sectionY, short[] positions, short[] values, int changed) throws IOException {
+        out.writeShort(sectionY);
+        out.writeShort(changed);
+
+        // Build the palette from the sorted, distinct changed values
+        short[] palette = Arrays.copyOf(values, changed);
+        Arrays.sort(palette);
+        int paletteSize = 0;
+        for (int i = 0; i < palette.length; i++) {
+            if (i == 0 || palette[i] != palette[paletteSize - 1]) palette[paletteSize++] = palette[i];
+        }
+        out.writeShort(paletteSize);
+        for (int i = 0; i < paletteSize; i++) out.writeShort(palette[i]);
+
+        // Positions are already in ascending order
+        if (changed <= SPARSE_LIMIT) {
+            for (int i = 0; i < changed; i++) out.writeShort(positions[i]);
+        } else {
+            long[] mask = new long[MASK_LONGS];
+            for (int i = 0; i < changed; i++) mask[positions[i] >> 6] |= 1L << (positions[i] & 63);
+            for (long word : mask) out.writeLong(word);
+        }
+
+        int bits = bitsFor(paletteSize);
+        long[] packed = new long[(changed * bits + Long.SIZE - 1) / Long.SIZE];
+        for (int i = 0; i < changed; i++) {
+            pack(packed, bits, i, Arrays.binarySearch(palette, 0, paletteSize, values[i]));
+        }
+        out.writeShort(packed.length);
+        for (long word : packed) out.writeLong(word);
+    }
+
+    private static short[] readPositions(@NotNull DataInputStream in, int changed) throws IOException {
+        short[] positions = new short[changed];
+        if (changed <= SPARSE_LIMIT) {
+            for (int i = 0; i < changed; i++) positions[i] = in.readShort();
+        } else {
+            int i = 0;
+            for (int word = 0; word < MASK_LONGS; word++) {
+                long bits = in.readLong();
+                while (bits != 0) {
+                    positions[i++] = (short) ((word << 6) | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+        return positions;
+    }
+
+    private static int bitsFor(int paletteSize) {
+        return paletteSize <= 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize - 1);
+    }
+
+    private static void pack(long[] packed, int bits, int entry, int value) {
+        if (bits == 0) return;
+        long bit = (long) entry * bits;
+        int word = (int) (bit >> 6);
+        int offset = (int) (bit & 63);
+        packed[word] |= (long) value << offset;
+        if (offset + bits > Long.SIZE) packed[word + 1] |= (long) value >>> (Long.SIZE - offset);
+    }
+
+    private static int unpack(long[] packed, int bits, int entry) {
+        if (bits == 0) return 0;
+        long bit = (long) entry * bits;
+        int word = (int) (bit >> 6);
+        int offset = (int) (bit & 63);
+        long value = packed[word] >>> offset;
+        if (offset + bits > Long.SIZE) value |= packed[word + 1] << (Long.SIZE - offset);
+        return (int) (value & ((1L << bits) - 1));
+    }
+
+}
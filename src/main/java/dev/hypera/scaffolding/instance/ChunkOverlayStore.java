@@ -0,0 +1,299 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import space.vectrix.flare.fastutil.Long2ObjectSyncMap;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An append-only file of {@link ChunkDelta}s, used to persist changes made to schematic backed chunks.
+ * <br><br>
+ * The latest delta of every chunk is kept in memory, so the footprint of the store scales with the amount of
+ * changed blocks rather than the size of the world. Writes are batched and appended on a dedicated thread, which
+ * also rewrites the file once most of it is superseded records.
+ * <br>
+ * Stores must be {@link #close() closed} to write pending deltas and release the file and the writer thread.
+ */
+final class ChunkOverlayStore {
+
+    private static final int MAGIC = 0x5343_4F56; // SCOV
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES * 3;
+
+    private final @NotNull Path path;
+    private final Long2ObjectMap<byte[]> deltas = Long2ObjectSyncMap.hashmap();
+    private final Queue<PendingWrite> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Scaffolding-Overlay-Writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel channel;
+
+    // Guarded by this
+    private long liveBytes;
+    private boolean closed;
+
+    private ChunkOverlayStore(@NotNull Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens an overlay store, replaying any deltas already written to the file.
+     * @param path The overlay file, created if it does not exist.
+     * @return The overlay store.
+     * @throws IOException if the file could not be read or is not an overlay file.
+     */
+    static @NotNull ChunkOverlayStore open(@NotNull Path path) throws IOException {
+        ChunkOverlayStore store = new ChunkOverlayStore(path);
+        try {
+            long validLength = store.replay();
+            for (byte[] delta : store.deltas.values()) store.liveBytes += RECORD_HEADER_SIZE + delta.length;
+
+            store.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (validLength == 0) {
+                store.channel.truncate(0);
+                store.channel.write(header());
+            } else {
+                // Drop a partially written record left behind by a crash
+                store.channel.truncate(validLength);
+                store.channel.position(validLength);
+                if (store.shouldCompact()) store.compact();
+            }
+            return store;
+        } catch (IOException | RuntimeException e) {
+            store.writer.shutdownNow();
+            if (store.channel != null) store.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the latest delta of a chunk.
+     * @param index The chunk index.
+     * @return The encoded delta, or null if the chunk has not been changed.
+     */
+    byte @Nullable [] get(long index) {
+        return deltas.get(index);
+    }
+
+    /**
+     * Records the delta of a chunk. The delta is visible to {@link #get(long)} immediately and written to disk
+     * with the next batch.
+     * @param index The chunk index.
+     * @param delta The encoded delta, an empty array if the chunk no longer differs from its template.
+     * @return A future completed once the delta has been written, or failed if the store is closed.
+     */
+    synchronized @NotNull CompletableFuture<Void> write(long index, byte @NotNull [] delta) {
+        if (closed) return CompletableFuture.failedFuture(new IllegalStateException("Overlay store is closed"));
+
+        byte[] previous = delta.length == 0 ? deltas.remove(index) : deltas.put(index, delta);
+        if (delta.length == 0 && previous == null) return CompletableFuture.completedFuture(null);
+
+        if (previous != null) liveBytes -= RECORD_HEADER_SIZE + previous.length;
+        if (delta.length != 0) liveBytes += RECORD_HEADER_SIZE + delta.length;
+
+        PendingWrite write = new PendingWrite(index, delta, new CompletableFuture<>());
+        pending.add(write);
+        if (flushScheduled.compareAndSet(false, true)) writer.execute(this::flush);
+        return write.future();
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+
+        List<PendingWrite> batch = new ArrayList<>();
+        PendingWrite write;
+        while ((write = pending.poll()) != null) batch.add(write);
+        if (batch.isEmpty()) return;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (PendingWrite entry : batch) writeRecord(out, entry.index(), entry.delta());
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false);
+
+            for (PendingWrite entry : batch) entry.future().complete(null);
+        } catch (IOException e) {
+            for (PendingWrite entry : batch) entry.future().completeExceptionally(e);
+            return;
+        }
+
+        try {
+            if (shouldCompact()) compact();
+        } catch (IOException e) {
+            // The appended file is still valid, compaction is retried after the next batch
+            MinecraftServer.getExceptionManager().handleException(e);
+        }
+    }
+
+    /**
+     * Writes all pending deltas, then releases the file and stops the writer thread. Deltas recorded afterwards are
+     * rejected.
+     * @throws IOException if the file could not be closed.
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+
+        writer.execute(this::flush);
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Wait for the pending deltas to be written
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private long replay() throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER_SIZE) return 0;
+
+        try (InputStream stream = Files.newInputStream(path)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != MAGIC) throw new IOException("Invalid overlay file: " + path);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported overlay file version " + version + ": " + path);
+
+            long position = HEADER_SIZE;
+            while (true) {
+                try {
+                    int chunkX = in.readInt();
+                    int chunkZ = in.readInt();
+                    int length = in.readInt();
+                    if (length < 0) return position;
+
+                    byte[] delta = new byte[length];
+                    in.readFully(delta);
+
+                    long index = ChunkUtils.getChunkIndex(chunkX, chunkZ);
+                    if (delta.length == 0) deltas.remove(index);
+                    else deltas.put(index, delta);
+                    position += RECORD_HEADER_SIZE + delta.length;
+                } catch (EOFException e) {
+                    return position;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether most of the file is superseded records.
+     * @return true if the file should be rewritten.
+     * @throws IOException if the file size could not be read.
+     */
+    private boolean shouldCompact() throws IOException {
+        long live;
+        synchronized (this) {
+            live = liveBytes;
+        }
+        return channel.size() > HEADER_SIZE + live * 2;
+    }
+
+    /**
+     * Rewrites the file with only the latest delta of every chunk. Only called while opening the store or on the
+     * writer thread, deltas recorded meanwhile are still pending and appended afterwards.
+     * @throws IOException if the file could not be rewritten.
+     */
+    private void compact() throws IOException {
+        long[] indices;
+        byte[][] snapshot;
+        synchronized (this) {
+            indices = deltas.keySet().toLongArray();
+            snapshot = new byte[indices.length][];
+            for (int i = 0; i < indices.length; i++) snapshot[i] = deltas.get(indices[i]);
+        }
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < indices.length; i++) writeRecord(out, indices[i], snapshot[i]);
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) target.write(buffer);
+            target.force(false);
+        }
+
+        channel.close();
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private static void writeRecord(@NotNull DataOutputStream out, long index, byte @NotNull [] delta) throws IOException {
+        out.writeInt(ChunkUtils.getChunkCoordX(index));
+        out.writeInt(ChunkUtils.getChunkCoordZ(index));
+        out.writeInt(delta.length);
+        out.write(delta);
+    }
+
+    private static @NotNull ByteBuffer header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+    }
+
+    private record PendingWrite(long index, byte @NotNull [] delta, @NotNull CompletableFuture<Void> future) {}
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import dev.hypera.scaffolding.schematic.SectionInterner;
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.block.Block;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The compiled contents of a single chunk, stored as one state id array per section.
+ * <br>
+ * Sections that no schematic touches are not stored, and air (state id 0) is the default.
+ * <br>
+ * Templates are only modified while their {@link SchematicWorldTemplate} is compiled, and are read concurrently by
+ * chunk loaders afterwards. Readers must never modify the section arrays.
+ */
+final class ChunkTemplate {
+
+    static final int SECTION_SIZE = 16 * 16 * 16;
+
+    private int minSection;
+    private short[][] sections = new short[0][];
+
+    /**
+     * Copies a section from {@link dev.hypera.scaffolding.schematic.Schematic#forEachSection}, skipping positions
+     * that are outside the schematic.
+     * @param sectionY The section y coordinate.
+     * @param stateIds The state ids, -1 where the schematic has no block.
+     */
+    void mergeSection(int sectionY, short @NotNull [] stateIds) {
+        short[] section = getSection(sectionY);
+        for (int index = 0; index < SECTION_SIZE; index++) {
+            short stateId = stateIds[index];
+            if (stateId < 0) continue;
+
+            if (section == null) {
+                if (stateId == 0) continue;
+                section = createSection(sectionY);
+            }
+            section[index] = stateId;
+        }
+    }
+
+    /**
+     * Replaces every section array with its {@link SectionInterner interned} copy. Called once compilation is done,
+     * after which the arrays must not be modified.
+     */
+    void intern() {
+        for (int i = 0; i < sections.length; i++) {
+            if (sections[i] != null) sections[i] = SectionInterner.intern(sections[i]);
+        }
+    }
+
+    /**
+     * Gets the state ids of the given section.
+     * @param sectionY The section y coordinate.
+     * @return The state ids, indexed by {@link #index(int, int, int)}, or null if the section is empty.
+     */
+    short @Nullable [] getSection(int sectionY) {
+        int index = sectionY - minSection;
+        if (index < 0 || index >= sections.length) return null;
+        return sections[index];
+    }
+
+    int getMinSection() {
+        return minSection;
+    }
+
+    int getMaxSection() {
+        return minSection + sections.length;
+    }
+
+    /**
+     * Writes this template into a freshly created chunk.
+     * @param chunk The chunk.
+     */
+    void apply(@NotNull Chunk chunk) {
+        for (int sectionY = chunk.getMinSection(); sectionY < chunk.getMaxSection(); sectionY++) {
+            writeSection(chunk, sectionY, getSection(sectionY));
+        }
+    }
+
+    /**
+     * Writes every stored section of this template into a block setter, using chunk relative x and z coordinates.
+     * @param setter The block setter, such as a chunk batch.
+     */
+    void apply(@NotNull Block.Setter setter) {
+        for (int i = 0; i < sections.length; i++) writeSection(setter, minSection + i, sections[i]);
+    }
+
+    private short[] createSection(int sectionY) {
+        if (sections.length == 0) {
+            minSection = sectionY;
+            sections = new short[1][];
+        } else if (sectionY < minSection) {
+            short[][] grown = new short[sections.length + (minSection - sectionY)][];
+            System.arraycopy(sections, 0, grown, minSection - sectionY, sections.length);
+            sections = grown;
+            minSection = sectionY;
+        } else if (sectionY >= getMaxSection()) {
+            short[][] grown = new short[sectionY - minSection + 1][];
+            System.arraycopy(sections, 0, grown, 0, sections.length);
+            sections = grown;
+        }
+
+        short[] section = new short[SECTION_SIZE];
+        sections[sectionY - minSection] = section;
+        return section;
+    }
+
+    /**
+     * Gets the index of a block within a section array.
+     * @param x The x coordinate.
+     * @param y The y coordinate.
+     * @param z The z coordinate.
+     * @return The index.
+     */
+    static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+
+    /**
+     * Writes the non-air blocks of a section array into a freshly created chunk or chunk batch.
+     * @param setter The chunk or chunk batch.
+     * @param sectionY The section y coordinate.
+     * @param stateIds The state ids, or null to skip the section.
+     */
+    static void writeSection(@NotNull Block.Setter setter, int sectionY, short @Nullable [] stateIds) {
+        if (stateIds == null) return;
+        int baseY = sectionY << 4;
+        for (int index = 0; index < SECTION_SIZE; index++) {
+            short stateId = stateIds[index];
+            if (stateId == 0) continue;
+
+            Block block = Block.fromStateId(stateId);
+            if (block == null) throw new IllegalStateException("Invalid block state id: " + stateId);
+            setter.setBlock(index & 15, baseY + (index >> 8), (index >> 4) & 15, block);
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import dev.hypera.scaffolding.schematic.Schematic;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.minestom.server.instance.ChunkGenerator;
+import net.minestom.server.instance.ChunkPopulator;
+import net.minestom.server.instance.batch.ChunkBatch;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import space.vectrix.flare.fastutil.Long2ObjectSyncMap;
+
+import java.util.List;
+
+/**
+ * A chunk generator that repeats a schematic endlessly along the x and z axes.
+ * <br><br>
+ * The schematic's minimum corner is placed at {@code (offsetX + i * (width + spacingX), y, offsetZ + j * (length +
+ * spacingZ))} for every integer i and j. The schematic's own offsets are ignored.
+ * <br>
+ * Because the pattern repeats, a chunk's contents only depend on its position within the pattern. Each distinct
+ * position is compiled into a chunk template the first time it is generated, after which generating a chunk only
+ * copies the template's blocks into the batch.
+ */
+public final class SchematicChunkGenerator implements ChunkGenerator {
+
+    private final @NotNull Schematic schematic;
+    private final int periodX;
+    private final int periodZ;
+    private final int offsetX;
+    private final int offsetZ;
+    private final int y;
+    private final Long2ObjectMap<ChunkTemplate> templates = Long2ObjectSyncMap.hashmap();
+
+    private SchematicChunkGenerator(@NotNull Schematic schematic, int spacingX, int spacingZ, int offsetX, int offsetZ, int y) {
+        this.schematic = schematic;
+        this.periodX = schematic.getWidth() + spacingX;
+        this.periodZ = schematic.getLength() + spacingZ;
+        this.offsetX = offsetX;
+        this.offsetZ = offsetZ;
+        this.y = y;
+    }
+
+    /**
+     * Creates a builder for a {@link SchematicChunkGenerator}.
+     * @return The builder.
+     */
+    public static @NotNull Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void generateChunkData(@NotNull ChunkBatch chunkBatch, int chunkX, int chunkZ) {
+        int phaseX = Math.floorMod((chunkX << 4) - offsetX, periodX);
+        int phaseZ = Math.floorMod((chunkZ << 4) - offsetZ, periodZ);
+        long key = (long) phaseX << 32 | phaseZ;
+
+        ChunkTemplate template = templates.get(key);
+        if (template == null) {
+            // Compiled outside the map, so other chunks are not blocked meanwhile. Threads racing on the same
+            // position compile identical templates, and all of them use the first one stored.
+            ChunkTemplate compiled = compile(phaseX, phaseZ);
+            template = templates.putIfAbsent(key, compiled);
+            if (template == null) template = compiled;
+        }
+        template.apply(chunkBatch);
+    }
+
+    @Override
+    public @Nullable List<ChunkPopulator> getPopulators() {
+        return null;
+    }
+
+    /**
+     * Gets the number of distinct chunks compiled so far. This never exceeds the number of positions a chunk can
+     * have within the pattern.
+     * @return The number of compiled chunks.
+     */
+    public int getCompiledChunks() {
+        return templates.size();
+    }
+
+    /**
+     * Compiles a chunk from the tiles overlapping it. Only reads the schematic, so may run concurrently.
+     * @param phaseX The chunk's minimum x coordinate within the pattern.
+     * @param phaseZ The chunk's minimum z coordinate within the pattern.
+     * @return The interned template.
+     */
+    private @NotNull ChunkTemplate compile(int phaseX, int phaseZ) {
+        ChunkTemplate template = new ChunkTemplate();
+        Schematic.SectionConsumer consumer = (sectionX, sectionY, sectionZ, stateIds) -> template.mergeSection(sectionY, stateIds);
+
+        // Tiles are positioned relative to the chunk, only the part of each tile inside the chunk is visited
+        for (int tileX = -phaseX; tileX < 16; tileX += periodX) {
+            int fromX = Math.max(0, tileX);
+            int toX = Math.min(15, tileX + schematic.getWidth() - 1);
+            if (fromX > toX) continue;
+
+            for (int tileZ = -phaseZ; tileZ < 16; tileZ += periodZ) {
+                int fromZ = Math.max(0, tileZ);
+                int toZ = Math.min(15, tileZ + schematic.getLength() - 1);
+                if (fromZ > toZ) continue;
+
+                schematic.subVolume(fromX - tileX, 0, fromZ - tileZ, toX - fromX + 1, schematic.getHeight(), toZ - fromZ + 1)
+                        .forEachSection(tileX - schematic.getOffsetX(), y - schematic.getOffsetY(), tileZ - schematic.getOffsetZ(), consumer);
+            }
+        }
+
+        template.intern();
+        return template;
+    }
+
+    public static class Builder {
+
+        private Schematic schematic;
+        private int spacingX;
+        private int spacingZ;
+        private int offsetX;
+        private int offsetZ;
+        private int y;
+
+        private Builder() {}
+
+        /**
+         * Specifies the schematic to repeat.
+         * @param schematic The schematic.
+         * @return This builder.
+         */
+        public @NotNull Builder schematic(@NotNull Schematic schematic) {
+            this.schematic = schematic;
+            return this;
+        }
+
+        /**
+         * Specifies the gap between neighbouring copies of the schematic, which is left empty.
+         * @param x The gap along the x axis.
+         * @param z The gap along the z axis.
+         * @return This builder.
+         */
+        public @NotNull Builder spacing(int x, int z) {
+            this.spacingX = x;
+            this.spacingZ = z;
+            return this;
+        }
+
+        /**
+         * Specifies the position of the copy whose minimum corner is closest to the origin.
+         * @param x The x offset.
+         * @param z The z offset.
+         * @return This builder.
+         */
+        public @NotNull Builder offset(int x, int z) {
+            this.offsetX = x;
+            this.offsetZ = z;
+            return this;
+        }
+
+        /**
+         * Specifies the y coordinate the schematic's minimum corner is placed at.
+         * @param y The y coordinate.
+         * @return This builder.
+         */
+        public @NotNull Builder y(int y) {
+            this.y = y;
+            return this;
+        }
+
+        /**
+         * Builds the chunk generator.
+         * @return The chunk generator.
+         */
+        public @NotNull SchematicChunkGenerator build() {
+            if (schematic == null) throw new IllegalStateException("No schematic");
+            if (spacingX < 0 || spacingZ < 0) throw new IllegalStateException("Spacing cannot be negative");
+            if (schematic.getWidth() + spacingX <= 0 || schematic.getLength() + spacingZ <= 0) throw new IllegalStateException("Schematic is empty");
+            return new SchematicChunkGenerator(schematic, spacingX, spacingZ, offsetX, offsetZ, y);
+        }
+
+    }
+
+}
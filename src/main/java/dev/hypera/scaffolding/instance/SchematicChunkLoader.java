@@ -23,57 +23,50 @@
 package dev.hypera.scaffolding.instance;
 
 import dev.hypera.scaffolding.schematic.Schematic;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import net.minestom.server.instance.Chunk;
 import net.minestom.server.instance.DynamicChunk;
 import net.minestom.server.instance.IChunkLoader;
 import net.minestom.server.instance.Instance;
-import net.minestom.server.instance.batch.ChunkBatch;
-import net.minestom.server.instance.block.Block;
 import net.minestom.server.utils.chunk.ChunkUtils;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import space.vectrix.flare.fastutil.Long2ObjectSyncMap;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
+/**
+ * A chunk loader that loads chunks from schematics.
+ * <br><br>
+ * All schematic data is immutable once the loader is built, so chunks are loaded in parallel.
+ * <br>
+ * Loaders with an {@link Builder#overlay(Path) overlay} must be {@link #close() closed} once their instance is no
+ * longer used.
+ */
 // TODO: Entities?
 @SuppressWarnings("UnstableApiUsage")
-public class SchematicChunkLoader implements IChunkLoader {
+public class SchematicChunkLoader implements IChunkLoader, AutoCloseable {
 
     private final @NotNull Function<@NotNull Chunk, @NotNull CompletableFuture<Void>> saveHandler;
-    private final Long2ObjectMap<ChunkBatch> batches = Long2ObjectSyncMap.hashmap();
+    private final @Nullable ChunkOverlayStore overlay;
+    private final @NotNull SchematicWorldTemplate template;
+    private final @Nullable Executor executor;
 
     private SchematicChunkLoader(
             @NotNull Function<@NotNull Chunk, @NotNull CompletableFuture<Void>> saveHandler,
-            @NotNull Collection<Schematic> schematics,
-            int offsetX,
-            int offsetY,
-            int offsetZ
+            @Nullable ChunkOverlayStore overlay,
+            @NotNull SchematicWorldTemplate template,
+            @Nullable Executor executor
     ) {
         this.saveHandler = saveHandler;
-
-        // The block setter used for Schematic#apply
-        Block.Setter setter = (x, y, z, block) -> {
-            int chunkX = ChunkUtils.getChunkCoordinate(x);
-            int chunkZ = ChunkUtils.getChunkCoordinate(z);
-            long index = ChunkUtils.getChunkIndex(chunkX, chunkZ);
-
-            // Get the batch, create it if it doesn't exist
-            ChunkBatch batch = batches.computeIfAbsent(index, key -> new ChunkBatch());
-
-            // Add the block to the batch
-            batch.setBlock(x + offsetX, y + offsetY, z + offsetZ, block);
-        };
-
-        // Apply the schematics
-        for (Schematic schematic : schematics) {
-            schematic.apply(setter);
-        }
+        this.overlay = overlay;
+        this.template = template;
+        this.executor = executor;
     }
 
     /**
@@ -87,22 +80,74 @@ public class SchematicChunkLoader implements IChunkLoader {
     @Override
     public @NotNull CompletableFuture<@Nullable Chunk> loadChunk(@NotNull Instance instance, int chunkX, int chunkZ) {
         long index = ChunkUtils.getChunkIndex(chunkX, chunkZ);
-        ChunkBatch batch = batches.get(index);
+        ChunkTemplate template = this.template.getChunk(index);
+        byte[] delta = overlay == null ? null : overlay.get(index);
 
-        if (batch == null) {
+        if (template == null && delta == null) {
             return CompletableFuture.completedFuture(null);
         }
 
+        if (executor == null) {
+            return CompletableFuture.completedFuture(createChunk(instance, chunkX, chunkZ, template, delta));
+        }
+        return CompletableFuture.supplyAsync(() -> createChunk(instance, chunkX, chunkZ, template, delta), executor);
+    }
+
+    @Override
+    public boolean supportsParallelLoading() {
+        return true;
+    }
+
+    private @NotNull Chunk createChunk(@NotNull Instance instance, int chunkX, int chunkZ,
+                                       @Nullable ChunkTemplate template, byte @Nullable [] delta) {
         DynamicChunk chunk = new DynamicChunk(instance, chunkX, chunkZ);
-        CompletableFuture<Chunk> future = new CompletableFuture<>();
-        batch.apply(instance, chunk, future::complete);
+        synchronized (chunk) {
+            if (delta == null) {
+                template.apply(chunk);
+            } else {
+                // Merge the saved changes over the schematic data
+                int minSection = chunk.getMinSection();
+                short[][] sections = new short[chunk.getMaxSection() - minSection][];
+                if (template != null) {
+                    for (int i = 0; i < sections.length; i++) sections[i] = template.getSection(minSection + i);
+                }
+                ChunkDelta.apply(delta, minSection, sections);
 
-        return future;
+                for (int i = 0; i < sections.length; i++) ChunkTemplate.writeSection(chunk, minSection + i, sections[i]);
+            }
+        }
+
+        return chunk;
     }
 
     @Override
     public @NotNull CompletableFuture<Void> saveChunk(@NotNull Chunk chunk) {
-        return saveHandler.apply(chunk);
+        CompletableFuture<Void> saved = saveHandler.apply(chunk);
+        if (overlay == null) {
+            return saved;
+        }
+
+        long index = ChunkUtils.getChunkIndex(chunk.getChunkX(), chunk.getChunkZ());
+        byte[] delta;
+        synchronized (chunk) {
+            delta = ChunkDelta.diff(chunk, template.getChunk(index));
+        }
+        return CompletableFuture.allOf(overlay.write(index, delta), saved);
+    }
+
+    /**
+     * Writes all pending overlay changes to disk, then closes the overlay file and stops its writer thread. Chunks
+     * can still be loaded afterwards, but no longer saved to the overlay.
+     * @throws UncheckedIOException if the overlay file could not be closed.
+     */
+    @Override
+    public void close() {
+        if (overlay == null) return;
+        try {
+            overlay.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public static class Builder {
@@ -110,6 +155,9 @@ public class SchematicChunkLoader implements IChunkLoader {
         private final List<Schematic> schematics = new ArrayList<>();
         private @NotNull Function<@NotNull Chunk, @NotNull CompletableFuture<Void>> handler = chunk ->
                 CompletableFuture.completedFuture(null);
+        private @Nullable Path overlayPath;
+        private @Nullable SchematicWorldTemplate template;
+        private @Nullable Executor executor;
         private int xOffset;
         private int yOffset;
         private int zOffset;
@@ -145,8 +193,23 @@ public class SchematicChunkLoader implements IChunkLoader {
             return this;
         }
 
+        /**
+         * Specifies a precompiled template to load the chunks from, shared with any other loader using it.
+         * <br><br>
+         * A template cannot be combined with {@link #addSchematic(Schematic) schematics} or an
+         * {@link #offset(int, int, int) offset}, add those to the template instead.
+         * @param template The template.
+         * @return This builder.
+         */
+        public @NotNull Builder template(@NotNull SchematicWorldTemplate template) {
+            this.template = template;
+            return this;
+        }
+
         /**
          * Specifies the handler to use to save the chunks.
+         * <br><br>
+         * The handler is called for every saved chunk, including when an {@link #overlay(Path) overlay} is set.
          * @param handler The handler.
          * @return This builder.
          */
@@ -155,8 +218,65 @@ public class SchematicChunkLoader implements IChunkLoader {
             return this;
         }
 
+        /**
+         * Specifies the executor chunks are created on.
+         * <br><br>
+         * By default, chunks are created on the thread that requests them, which Minestom already runs in parallel
+         * for loaders that support it.
+         * @param executor The executor.
+         * @return This builder.
+         */
+        public @NotNull Builder executor(@NotNull Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Specifies a file to persist changes made to the chunks in.
+         * <br><br>
+         * Saved chunks are stored as compressed deltas against the schematic data and merged back over it when the
+         * chunks are loaded again. Saves are batched and written asynchronously.
+         * <br>
+         * The overlay only stores block states. Block entity data and block handlers are not persisted, use the
+         * {@link #saveChunkHandler(Function) save chunk handler}, which is still called for every saved chunk, to
+         * store them elsewhere.
+         * @param path The overlay file, created if it does not exist.
+         * @return This builder.
+         */
+        public @NotNull Builder overlay(@NotNull Path path) {
+            this.overlayPath = path;
+            return this;
+        }
+
+        /**
+         * Builds the chunk loader, compiling all added schematics.
+         * @return The chunk loader.
+         * @throws IllegalStateException if a template was combined with schematics or an offset.
+         * @throws UncheckedIOException if the overlay file could not be opened.
+         */
         public @NotNull SchematicChunkLoader build() {
-            return new SchematicChunkLoader(handler, List.copyOf(schematics), xOffset, yOffset, zOffset);
+            if (template != null && !schematics.isEmpty()) throw new IllegalStateException("Schematics cannot be added when a template is set");
+            if (template != null && (xOffset != 0 || yOffset != 0 || zOffset != 0)) throw new IllegalStateException("An offset cannot be set when a template is set");
+
+            SchematicWorldTemplate template = this.template;
+            if (template == null) {
+                SchematicWorldTemplate.Builder builder = SchematicWorldTemplate.builder().offset(xOffset, yOffset, zOffset);
+                schematics.forEach(builder::addSchematic);
+                template = builder.build();
+            }
+
+            // Opened last, so nothing is left open if compiling fails
+            ChunkOverlayStore overlay = null;
+            if (overlayPath != null) {
+                try {
+                    overlay = ChunkOverlayStore.open(overlayPath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            SchematicChunkLoader loader = new SchematicChunkLoader(handler, overlay, template, executor);
+            template.register(loader);
+            return loader;
         }
 
     }
@@ -0,0 +1,240 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import dev.hypera.scaffolding.schematic.Schematic;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minestom.server.instance.InstanceContainer;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Schematics compiled once into immutable chunk data, which can be shared by any number of instances.
+ * <br>
+ * Chunk columns are compiled in parallel on the common fork join pool.
+ * <br><br>
+ * Every {@link SchematicChunkLoader} created from a template reads from the same compiled data, so attaching
+ * another instance only costs the chunks it loads and, with an overlay, the changes it saves.
+ */
+public final class SchematicWorldTemplate {
+
+    private final Long2ObjectMap<ChunkTemplate> chunks;
+    private final Map<SchematicChunkLoader, Boolean> loaders = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private SchematicWorldTemplate(@NotNull Collection<Placement> placements, int offsetX, int offsetY, int offsetZ) {
+        // Find the chunk columns every schematic overlaps, keeping the order the schematics were added in
+        Long2ObjectMap<List<Placement>> columns = new Long2ObjectOpenHashMap<>();
+        for (Placement placement : placements) {
+            Schematic schematic = placement.schematic();
+            if (schematic.getWidth() <= 0 || schematic.getHeight() <= 0 || schematic.getLength() <= 0) continue;
+
+            int minX = offsetX + placement.x() + schematic.getOffsetX();
+            int minZ = offsetZ + placement.z() + schematic.getOffsetZ();
+            for (int chunkX = minX >> 4; chunkX <= (minX + schematic.getWidth() - 1) >> 4; chunkX++) {
+                for (int chunkZ = minZ >> 4; chunkZ <= (minZ + schematic.getLength() - 1) >> 4; chunkZ++) {
+                    columns.computeIfAbsent(ChunkUtils.getChunkIndex(chunkX, chunkZ), key -> new ArrayList<>()).add(placement);
+                }
+            }
+        }
+
+        // Compile every column on its own, so threads share nothing but the section interner
+        long[] indices = columns.keySet().toLongArray();
+        ChunkTemplate[] templates = new ChunkTemplate[indices.length];
+        IntStream.range(0, indices.length).parallel().forEach(i ->
+                templates[i] = compile(indices[i], columns.get(indices[i]), offsetX, offsetY, offsetZ));
+
+        Long2ObjectMap<ChunkTemplate> chunks = new Long2ObjectOpenHashMap<>(indices.length);
+        for (int i = 0; i < indices.length; i++) chunks.put(indices[i], templates[i]);
+        this.chunks = Long2ObjectMaps.unmodifiable(chunks);
+    }
+
+    /**
+     * Compiles a single chunk column. Only the part of each schematic inside the column is visited, and schematics
+     * are merged in the order they were added, so the last added schematic wins.
+     * @param index The chunk index.
+     * @param placements The schematics overlapping the column.
+     * @param offsetX The template x offset.
+     * @param offsetY The template y offset.
+     * @param offsetZ The template z offset.
+     * @return The interned template.
+     */
+    private static @NotNull ChunkTemplate compile(long index, @NotNull List<Placement> placements, int offsetX, int offsetY, int offsetZ) {
+        int chunkMinX = ChunkUtils.getChunkCoordX(index) << 4;
+        int chunkMinZ = ChunkUtils.getChunkCoordZ(index) << 4;
+        ChunkTemplate template = new ChunkTemplate();
+        Schematic.SectionConsumer consumer = (sectionX, sectionY, sectionZ, stateIds) -> template.mergeSection(sectionY, stateIds);
+
+        for (Placement placement : placements) {
+            Schematic schematic = placement.schematic();
+            int originX = offsetX + placement.x();
+            int originY = offsetY + placement.y();
+            int originZ = offsetZ + placement.z();
+            int minX = originX + schematic.getOffsetX();
+            int minZ = originZ + schematic.getOffsetZ();
+            int fromX = Math.max(minX, chunkMinX);
+            int fromZ = Math.max(minZ, chunkMinZ);
+            int toX = Math.min(minX + schematic.getWidth() - 1, chunkMinX + 15);
+            int toZ = Math.min(minZ + schematic.getLength() - 1, chunkMinZ + 15);
+
+            schematic.subVolume(fromX - minX, 0, fromZ - minZ, toX - fromX + 1, schematic.getHeight(), toZ - fromZ + 1)
+                    .forEachSection(originX, originY, originZ, consumer);
+        }
+
+        // Share identical sections with every other template
+        template.intern();
+        return template;
+    }
+
+    /**
+     * Creates a builder for a {@link SchematicWorldTemplate}.
+     * @return The builder.
+     */
+    public static @NotNull Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates a chunk loader backed by this template and sets it as the chunk loader of the given instance.
+     * <br><br>
+     * Use {@link SchematicChunkLoader.Builder#template(SchematicWorldTemplate)} to configure the loader further.
+     * @param instance The instance.
+     * @return The chunk loader.
+     */
+    public @NotNull SchematicChunkLoader attach(@NotNull InstanceContainer instance) {
+        SchematicChunkLoader loader = SchematicChunkLoader.builder().template(this).build();
+        instance.setChunkLoader(loader);
+        return loader;
+    }
+
+    /**
+     * Gets the number of chunk loaders reading from this template, whether they were created by
+     * {@link #attach(InstanceContainer)} or built with {@link SchematicChunkLoader.Builder#template(SchematicWorldTemplate)}.
+     * Loaders are no longer counted once they have been garbage collected.
+     * @return The number of chunk loaders.
+     */
+    public int getLoaderCount() {
+        return loaders.size();
+    }
+
+    /**
+     * Registers a chunk loader reading from this template.
+     * @param loader The chunk loader.
+     */
+    void register(@NotNull SchematicChunkLoader loader) {
+        loaders.put(loader, Boolean.TRUE);
+    }
+
+    /**
+     * Gets the number of chunks that contain schematic data.
+     * @return The number of chunks.
+     */
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    @Nullable ChunkTemplate getChunk(long index) {
+        return chunks.get(index);
+    }
+
+    @NotNull Long2ObjectMap<ChunkTemplate> getChunks() {
+        return chunks;
+    }
+
+    private record Placement(@NotNull Schematic schematic, int x, int y, int z) {}
+
+    public static class Builder {
+
+        private final List<Placement> placements = new ArrayList<>();
+        private int xOffset;
+        private int yOffset;
+        private int zOffset;
+
+        private Builder() {}
+
+        /**
+         * Adds a schematic to this template.
+         * <br><br>
+         * Note that schematics are loaded in the order they are added.
+         * <br>
+         * This means that the last added schematic is the only schematic that is guaranteed to have all its data.
+         * @param schematic The schematic to add.
+         * @return This builder.
+         */
+        public @NotNull Builder addSchematic(@NotNull Schematic schematic) {
+            return addSchematic(schematic, 0, 0, 0);
+        }
+
+        /**
+         * Adds a schematic to this template at the given position. The position is added to the schematic's own
+         * offset and the offset of this template.
+         * <br><br>
+         * Note that schematics are loaded in the order they are added.
+         * <br>
+         * This means that the last added schematic is the only schematic that is guaranteed to have all its data.
+         * @param schematic The schematic to add.
+         * @param x The x position.
+         * @param y The y position.
+         * @param z The z position.
+         * @return This builder.
+         */
+        public @NotNull Builder addSchematic(@NotNull Schematic schematic, int x, int y, int z) {
+            placements.add(new Placement(schematic, x, y, z));
+            return this;
+        }
+
+        /**
+         * Specifies the offset that applies to all schematics added to this template.
+         * @param x The x offset.
+         * @param y The y offset.
+         * @param z The z offset.
+         * @return This builder.
+         */
+        public @NotNull Builder offset(int x, int y, int z) {
+            this.xOffset = x;
+            this.yOffset = y;
+            this.zOffset = z;
+            return this;
+        }
+
+        /**
+         * Builds the template, compiling all added schematics.
+         * @return The template.
+         */
+        public @NotNull SchematicWorldTemplate build() {
+            return new SchematicWorldTemplate(List.copyOf(placements), xOffset, yOffset, zOffset);
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import dev.hypera.scaffolding.region.Region;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.instance.block.Block;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The blocks a build changes, grouped by chunk, and the traffic applying them has caused so far.
+ * <br><br>
+ * Builds that place their blocks in several passes apply the changes after each pass. Change counts and stats cover
+ * every pass, so a chunk that changes a little in every pass is still resent once enough of it changed in total.
+ * Chunks are resent once, when the build {@link #finish(Instance) finishes}.
+ */
+final class BuildChanges {
+
+    private final int minSection;
+    private final int sectionCount;
+    private final @NotNull Long2ObjectMap<ChunkChanges> chunks = new Long2ObjectOpenHashMap<>();
+
+    private long blocksChanged;
+    private int chunksResent;
+    private int multiBlockChanges;
+    private long packetsSent;
+    private long bytesSent;
+
+    /**
+     * Creates changes for a build spanning the given heights.
+     * @param minY The lowest block y coordinate the build changes.
+     * @param maxY The highest block y coordinate the build changes.
+     */
+    BuildChanges(int minY, int maxY) {
+        this.minSection = minY >> 4;
+        this.sectionCount = (maxY >> 4) - minSection + 1;
+    }
+
+    /**
+     * Adds a block change. Unknown state ids are skipped.
+     * @param x The block x coordinate.
+     * @param y The block y coordinate.
+     * @param z The block z coordinate.
+     * @param stateId The block state id.
+     */
+    void add(int x, int y, int z, short stateId) {
+        if (Block.fromStateId(stateId) == null) return;
+
+        long index = ChunkUtils.getChunkIndex(x >> 4, z >> 4);
+        ChunkChanges chunkChanges = chunks.get(index);
+        if (chunkChanges == null) {
+            chunkChanges = new ChunkChanges(x >> 4, z >> 4, minSection, sectionCount);
+            chunks.put(index, chunkChanges);
+        }
+        chunkChanges.add(x, y, z, stateId);
+    }
+
+    /**
+     * Applies the changes added since the last call. Chunks that are not loaded are skipped.
+     * @param instance The instance.
+     * @param threshold The fraction of a chunk's blocks that must change for it to be resent as a whole.
+     */
+    void apply(@NotNull Instance instance, double threshold) {
+        for (ChunkChanges chunkChanges : chunks.values()) {
+            if (!chunkChanges.hasQueued()) continue;
+
+            Chunk chunk = instance.getChunk(chunkChanges.getChunkX(), chunkChanges.getChunkZ());
+            if (chunk == null) {
+                chunkChanges.clear();
+                continue;
+            }
+
+            chunkChanges.apply(chunk, threshold);
+            blocksChanged += chunkChanges.getBlocks();
+            count(chunkChanges);
+        }
+    }
+
+    /**
+     * Resends every chunk that changed enough to be sent as a whole. Called once all passes have been applied.
+     * @param instance The instance.
+     */
+    void finish(@NotNull Instance instance) {
+        for (ChunkChanges chunkChanges : chunks.values()) {
+            if (!chunkChanges.needsResend()) continue;
+
+            Chunk chunk = instance.getChunk(chunkChanges.getChunkX(), chunkChanges.getChunkZ());
+            if (chunk == null) continue;
+
+            chunkChanges.resend(chunk);
+            chunksResent++;
+            count(chunkChanges);
+        }
+        chunks.clear();
+    }
+
+    private void count(@NotNull ChunkChanges chunkChanges) {
+        multiBlockChanges += chunkChanges.getMultiBlockChanges();
+        packetsSent += chunkChanges.getPacketsSent();
+        bytesSent += chunkChanges.getBytesSent();
+    }
+
+    /**
+     * Gets the stats of every change applied so far.
+     * @param region The region the build covers.
+     * @return The build stats.
+     */
+    @NotNull BuildStats stats(@NotNull Region region) {
+        return new BuildStats(region, blocksChanged, chunksResent, multiBlockChanges, packetsSent, bytesSent);
+    }
+
+}
@@ -0,0 +1,570 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import dev.hypera.scaffolding.region.Region;
+import net.minestom.server.coordinate.Point;
+import net.minestom.server.coordinate.Vec;
+import net.minestom.server.instance.Instance;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Schedules schematic builds on a dedicated executor.
+ * <br><br>
+ * The scheduler limits how many builds run at once and how many blocks they place in total. Waiting builds are
+ * queued per instance and started round-robin, so a burst of builds in one instance cannot starve the others.
+ * <br>
+ * Cancelling the future returned by {@link #submit(Schematic, Instance, Point)} removes a queued build, or aborts a
+ * running one before its blocks are handed to the instance.
+ * <br>
+ * Schematic streams submitted through {@link #submit(InputStream, Instance, Point)} are queued the same way. Their
+ * volume is only known once the header has been decoded, so they wait for block capacity after starting.
+ * <br><br>
+ * Builds write their blocks into the chunks directly. Chunks where enough blocks changed are resent as a whole,
+ * the others receive one multi block change per changed section. The traffic of every build is reported through
+ * {@link Builder#statsListener(Consumer)}.
+ */
+public final class BuildScheduler {
+
+    private static final int CANCELLATION_CHECK_INTERVAL = 4096;
+    private static final long RESERVE_POLL_INTERVAL = 100;
+    private static volatile BuildScheduler defaultScheduler;
+
+    private final @NotNull Executor executor;
+    private final int maxConcurrentBuilds;
+    private final long maxBlocksInFlight;
+    private final double chunkResendThreshold;
+    private final @Nullable Consumer<BuildStats> statsListener;
+
+    // Guarded by this
+    private final Map<Instance, ArrayDeque<Task>> queues = new LinkedHashMap<>();
+    private int queued;
+    private int running;
+    private long blocksInFlight;
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private BuildScheduler(@NotNull Executor executor, int maxConcurrentBuilds, long maxBlocksInFlight, double chunkResendThreshold, @Nullable Consumer<BuildStats> statsListener) {
+        this.executor = executor;
+        this.maxConcurrentBuilds = maxConcurrentBuilds;
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.chunkResendThreshold = chunkResendThreshold;
+        this.statsListener = statsListener;
+    }
+
+    /**
+     * Creates a builder for a {@link BuildScheduler}.
+     * @return The builder.
+     */
+    public static @NotNull Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Gets the scheduler used by {@link Schematic#build(Instance, Point)}.
+     * @return The default scheduler.
+     */
+    public static @NotNull BuildScheduler getDefault() {
+        BuildScheduler scheduler = defaultScheduler;
+        if (scheduler == null) {
+            synchronized (BuildScheduler.class) {
+                scheduler = defaultScheduler;
+                if (scheduler == null) defaultScheduler = scheduler = builder().build();
+            }
+        }
+        return scheduler;
+    }
+
+    /**
+     * Sets the scheduler used by {@link Schematic#build(Instance, Point)}. Builds already submitted to the previous
+     * scheduler are not moved.
+     * @param scheduler The scheduler.
+     */
+    public static void setDefault(@NotNull BuildScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    /**
+     * Queues a schematic to be built in an instance.
+     * @param schematic The schematic.
+     * @param instance The instance.
+     * @param position The position to build the schematic at.
+     * @return A future completed with the built region once all blocks have been placed.
+     */
+    public @NotNull CompletableFuture<Region> submit(@NotNull Schematic schematic, @NotNull Instance instance, @NotNull Point position) {
+        Region region = new Region(instance, position, position.add(schematic.getWidth(), schematic.getHeight(), schematic.getLength()));
+        return enqueue(new BuildTask(schematic, instance, position, null, region));
+    }
+
+    /**
+     * Queues part of a schematic to be built in an instance. Sections outside the clip region and chunk columns
+     * rejected by the predicate are neither loaded nor visited.
+     * @param schematic The schematic.
+     * @param instance The instance.
+     * @param position The position to build the schematic at.
+     * @param clip The region to build inside of, in world coordinates, or null to build the whole schematic.
+     * @param chunks The chunks to build in, or null to build in every chunk.
+     * @return A future completed with the built region once all blocks have been placed. With a clip region, this
+     * is the part of the clip region the schematic covers, which has a size of 0 if they do not overlap.
+     */
+    public @NotNull CompletableFuture<Region> submit(@NotNull Schematic schematic, @NotNull Instance instance, @NotNull Point position,
+                                                     @Nullable Region clip, @Nullable Schematic.ChunkPredicate chunks) {
+        if (clip == null) {
+            Region region = new Region(instance, position, position.add(schematic.getWidth(), schematic.getHeight(), schematic.getLength()));
+            return enqueue(new BuildTask(schematic, instance, position, chunks, region));
+        }
+        if (clip.instance() != instance) throw new IllegalArgumentException("Clip region is in another instance");
+
+        // Intersect the clip with the schematic's world bounds
+        int minX = position.blockX() + schematic.getOffsetX();
+        int minY = position.blockY() + schematic.getOffsetY();
+        int minZ = position.blockZ() + schematic.getOffsetZ();
+        int fromX = Math.max(minX, Math.min(clip.lower().blockX(), clip.upper().blockX()));
+        int fromY = Math.max(minY, Math.min(clip.lower().blockY(), clip.upper().blockY()));
+        int fromZ = Math.max(minZ, Math.min(clip.lower().blockZ(), clip.upper().blockZ()));
+        int toX = Math.min(minX + schematic.getWidth() - 1, Math.max(clip.lower().blockX(), clip.upper().blockX()));
+        int toY = Math.min(minY + schematic.getHeight() - 1, Math.max(clip.lower().blockY(), clip.upper().blockY()));
+        int toZ = Math.min(minZ + schematic.getLength() - 1, Math.max(clip.lower().blockZ(), clip.upper().blockZ()));
+
+        Point lower = new Vec(fromX, fromY, fromZ);
+        if (fromX > toX || fromY > toY || fromZ > toZ) {
+            return CompletableFuture.completedFuture(new Region(instance, lower, lower.sub(1, 1, 1)));
+        }
+
+        Schematic clipped = schematic.subVolume(fromX - minX, fromY - minY, fromZ - minZ, toX - fromX + 1, toY - fromY + 1, toZ - fromZ + 1);
+        Region region = new Region(instance, lower, new Vec(toX, toY, toZ));
+        return enqueue(new BuildTask(clipped, instance, position, chunks, region));
+    }
+
+    /**
+     * Queues a gzipped schematic stream to be pasted in an instance while it is being decoded. Blocks are placed in
+     * slabs of up to 16 layers, so placing starts before the whole stream has been read and only a few slabs are
+     * held in memory at once.
+     * @param inputStream The schematic stream, closed once it has been read, or once the paste ends if it never started.
+     * @param instance The instance.
+     * @param position The position to paste the schematic at.
+     * @return A future completed with the pasted region once all blocks have been placed.
+     */
+    public @NotNull CompletableFuture<Region> submit(@NotNull InputStream inputStream, @NotNull Instance instance, @NotNull Point position) {
+        return enqueue(new StreamBuildTask(inputStream, instance, position));
+    }
+
+    private @NotNull CompletableFuture<Region> enqueue(@NotNull Task task) {
+        task.future.whenComplete((region, throwable) -> {
+            if (task.future.isCancelled()) dequeue(task);
+        });
+
+        synchronized (this) {
+            queues.computeIfAbsent(task.instance, key -> new ArrayDeque<>()).add(task);
+            queued++;
+        }
+        dispatch();
+        return task.future;
+    }
+
+    /**
+     * Gets the number of builds waiting to start.
+     * @return The queue depth.
+     */
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * Gets the number of builds currently running.
+     * @return The number of running builds.
+     */
+    public synchronized int getRunningBuilds() {
+        return running;
+    }
+
+    /**
+     * Gets the total volume of the builds currently running.
+     * @return The number of blocks in flight.
+     */
+    public synchronized long getBlocksInFlight() {
+        return blocksInFlight;
+    }
+
+    /**
+     * Gets the average time builds waited in the queue before starting.
+     * @return The average wait time.
+     */
+    public @NotNull Duration getAverageWaitTime() {
+        long count = started.get();
+        return Duration.ofNanos(count == 0 ? 0 : totalWaitNanos.get() / count);
+    }
+
+    /**
+     * Gets the longest time a build waited in the queue before starting.
+     * @return The longest wait time.
+     */
+    public @NotNull Duration getMaxWaitTime() {
+        return Duration.ofNanos(maxWaitNanos.get());
+    }
+
+    /**
+     * Gets the number of packets builds have sent to players.
+     * @return The number of packets sent.
+     */
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    /**
+     * Gets the number of bytes builds have sent to players, see {@link BuildStats}.
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    private void dispatch() {
+        List<Task> toStart = new ArrayList<>();
+        synchronized (this) {
+            while (running < maxConcurrentBuilds && !queues.isEmpty()) {
+                // The instance that has waited the longest is first
+                Iterator<Map.Entry<Instance, ArrayDeque<Task>>> iterator = queues.entrySet().iterator();
+                Map.Entry<Instance, ArrayDeque<Task>> entry = iterator.next();
+                Task task = entry.getValue().peek();
+
+                // Large builds wait for capacity rather than being overtaken, unless nothing else is running
+                if (running > 0 && blocksInFlight + task.volume > maxBlocksInFlight) break;
+
+                entry.getValue().poll();
+                iterator.remove();
+                if (!entry.getValue().isEmpty()) queues.put(entry.getKey(), entry.getValue());
+
+                queued--;
+                running++;
+                blocksInFlight += task.volume;
+                task.started = true;
+                toStart.add(task);
+            }
+        }
+
+        for (Task task : toStart) {
+            long wait = System.nanoTime() - task.queuedAt;
+            started.incrementAndGet();
+            totalWaitNanos.addAndGet(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+
+            try {
+                executor.execute(() -> run(task));
+            } catch (RejectedExecutionException e) {
+                task.future.completeExceptionally(e);
+                finish(task);
+            }
+        }
+    }
+
+    private synchronized void dequeue(@NotNull Task task) {
+        if (task.started) return;
+
+        ArrayDeque<Task> queue = queues.get(task.instance);
+        if (queue == null || !queue.remove(task)) return;
+        if (queue.isEmpty()) queues.remove(task.instance);
+        queued--;
+    }
+
+    /**
+     * Adds to the volume of a running build, waiting until the blocks in flight leave room for it. Builds that only
+     * learn their volume while running use this to count against {@link Builder#maxBlocksInFlight(long)}.
+     * @param task The running build.
+     * @param blocks The number of blocks to add.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    synchronized void reserve(@NotNull Task task, long blocks) throws InterruptedException {
+        // As when starting builds, a build larger than the limit only waits for the others to finish
+        while (blocksInFlight > 0 && blocksInFlight + blocks > maxBlocksInFlight) {
+            task.checkCancelled();
+            wait(RESERVE_POLL_INTERVAL);
+        }
+        blocksInFlight += blocks;
+        task.volume += blocks;
+    }
+
+    /**
+     * Reports the traffic of a finished build to the totals and the stats listener.
+     * @param stats The build stats.
+     */
+    void report(@NotNull BuildStats stats) {
+        packetsSent.addAndGet(stats.packetsSent());
+        bytesSent.addAndGet(stats.bytesSent());
+        if (statsListener != null) statsListener.accept(stats);
+    }
+
+    private void finish(@NotNull Task task) {
+        synchronized (this) {
+            running--;
+            blocksInFlight -= task.volume;
+            notifyAll();
+        }
+        dispatch();
+    }
+
+    private void run(@NotNull Task task) {
+        try {
+            task.checkCancelled();
+            task.run(this);
+        } catch (Throwable throwable) {
+            if (!(throwable instanceof CancellationException)) task.future.completeExceptionally(throwable);
+        } finally {
+            finish(task);
+        }
+    }
+
+    /**
+     * Gets the fraction of a chunk's blocks that must change for it to be resent as a whole.
+     * @return The chunk resend threshold.
+     */
+    double getChunkResendThreshold() {
+        return chunkResendThreshold;
+    }
+
+    /**
+     * Loads every chunk in a column range once, skipping chunks rejected by the predicate.
+     * @param instance The instance.
+     * @param minX The lowest block x coordinate.
+     * @param minZ The lowest block z coordinate.
+     * @param maxX The highest block x coordinate.
+     * @param maxZ The highest block z coordinate.
+     * @param chunks The chunks to load, or null to load every chunk.
+     */
+    static void loadChunks(@NotNull Instance instance, int minX, int minZ, int maxX, int maxZ, @Nullable Schematic.ChunkPredicate chunks) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                if (chunks == null || chunks.test(chunkX, chunkZ)) futures.add(instance.loadOptionalChunk(chunkX, chunkZ));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[]{})).join();
+    }
+
+    /**
+     * A build waiting for or running on a scheduler.
+     */
+    abstract static class Task {
+
+        final @NotNull Instance instance;
+        final @NotNull CompletableFuture<Region> future = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+        private long volume;
+        private boolean started;
+
+        Task(@NotNull Instance instance, long volume) {
+            this.instance = instance;
+            this.volume = volume;
+        }
+
+        /**
+         * Runs the build on the scheduler's executor. The build's capacity is released once this returns.
+         * @param scheduler The scheduler.
+         * @throws Exception if the build failed.
+         */
+        abstract void run(@NotNull BuildScheduler scheduler) throws Exception;
+
+        void checkCancelled() {
+            if (future.isCancelled()) throw new CancellationException();
+        }
+
+    }
+
+    private static final class BuildTask extends Task implements Schematic.BlockConsumer {
+
+        private final @NotNull Schematic schematic;
+        private final @NotNull Point position;
+        private final @Nullable Schematic.ChunkPredicate chunks;
+        private final @NotNull Region region;
+
+        private BuildChanges changes;
+        private int originX;
+        private int originY;
+        private int originZ;
+        private int visited;
+
+        private BuildTask(@NotNull Schematic schematic, @NotNull Instance instance, @NotNull Point position,
+                          @Nullable Schematic.ChunkPredicate chunks, @NotNull Region region) {
+            super(instance, (long) schematic.getWidth() * schematic.getHeight() * schematic.getLength());
+            this.schematic = schematic;
+            this.position = position;
+            this.chunks = chunks;
+            this.region = region;
+        }
+
+        @Override
+        void run(@NotNull BuildScheduler scheduler) {
+            originX = position.blockX();
+            originY = position.blockY();
+            originZ = position.blockZ();
+
+            int minX = originX + schematic.getOffsetX();
+            int minZ = originZ + schematic.getOffsetZ();
+            int maxX = minX + schematic.getWidth() - 1;
+            int maxZ = minZ + schematic.getLength() - 1;
+            loadChunks(instance, minX, minZ, maxX, maxZ, chunks);
+            checkCancelled();
+
+            int minY = originY + schematic.getOffsetY();
+            changes = new BuildChanges(minY, minY + schematic.getHeight() - 1);
+            if (chunks == null) schematic.forEachBlock(this);
+            else {
+                // Visit accepted chunk columns through sub-volumes, so rejected columns are never touched
+                for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+                    for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                        if (!chunks.test(chunkX, chunkZ)) continue;
+
+                        int fromX = Math.max(minX, chunkX << 4);
+                        int fromZ = Math.max(minZ, chunkZ << 4);
+                        int toX = Math.min(maxX, (chunkX << 4) + 15);
+                        int toZ = Math.min(maxZ, (chunkZ << 4) + 15);
+                        schematic.subVolume(fromX - minX, 0, fromZ - minZ, toX - fromX + 1, schematic.getHeight(), toZ - fromZ + 1).forEachBlock(this);
+                    }
+                }
+            }
+            checkCancelled();
+
+            changes.apply(instance, scheduler.chunkResendThreshold);
+            changes.finish(instance);
+            scheduler.report(changes.stats(region));
+            future.complete(region);
+        }
+
+        @Override
+        public void accept(int x, int y, int z, short stateId) {
+            if (++visited % CANCELLATION_CHECK_INTERVAL == 0) checkCancelled();
+            changes.add(x + originX, y + originY, z + originZ, stateId);
+        }
+
+    }
+
+    public static class Builder {
+
+        private Executor executor;
+        private int maxConcurrentBuilds = Runtime.getRuntime().availableProcessors();
+        private long maxBlocksInFlight = 1L << 24;
+        private double chunkResendThreshold = 0.1;
+        private Consumer<BuildStats> statsListener;
+
+        private Builder() {}
+
+        /**
+         * Specifies the executor builds run on. Builds block while waiting for chunks to load, so an executor with
+         * cheap threads, such as a virtual thread per task executor, works well.
+         * <br>
+         * By default, a fixed pool of {@link #maxConcurrentBuilds(int)} daemon threads is used.
+         * @param executor The executor.
+         * @return This builder.
+         */
+        public @NotNull Builder executor(@NotNull Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Specifies how many builds may run at once.
+         * @param maxConcurrentBuilds The maximum number of concurrent builds.
+         * @return This builder.
+         */
+        public @NotNull Builder maxConcurrentBuilds(int maxConcurrentBuilds) {
+            if (maxConcurrentBuilds < 1) throw new IllegalArgumentException("maxConcurrentBuilds must be positive");
+            this.maxConcurrentBuilds = maxConcurrentBuilds;
+            return this;
+        }
+
+        /**
+         * Specifies the total volume running builds may have. A build larger than this still runs, but only when
+         * no other build is running.
+         * @param maxBlocksInFlight The maximum number of blocks in flight.
+         * @return This builder.
+         */
+        public @NotNull Builder maxBlocksInFlight(long maxBlocksInFlight) {
+            if (maxBlocksInFlight < 1) throw new IllegalArgumentException("maxBlocksInFlight must be positive");
+            this.maxBlocksInFlight = maxBlocksInFlight;
+            return this;
+        }
+
+        /**
+         * Specifies the fraction of a chunk's blocks that must change for the chunk to be resent as a whole, rather
+         * than as multi block changes. 0 always resends chunks, anything above 1 never does.
+         * <br>
+         * A multi block change costs about 4 bytes per block, while a chunk packet costs a few kilobytes per section,
+         * so the default is 0.1.
+         * @param chunkResendThreshold The fraction of changed blocks.
+         * @return This builder.
+         */
+        public @NotNull Builder chunkResendThreshold(double chunkResendThreshold) {
+            if (!(chunkResendThreshold >= 0)) throw new IllegalArgumentException("chunkResendThreshold cannot be negative");
+            this.chunkResendThreshold = chunkResendThreshold;
+            return this;
+        }
+
+        /**
+         * Specifies a listener receiving the traffic of every completed build. It is called on the thread that ran
+         * the build.
+         * @param statsListener The listener.
+         * @return This builder.
+         */
+        public @NotNull Builder statsListener(@NotNull Consumer<BuildStats> statsListener) {
+            this.statsListener = statsListener;
+            return this;
+        }
+
+        public @NotNull BuildScheduler build() {
+            Executor executor = this.executor;
+            if (executor == null) {
+                AtomicInteger threadId = new AtomicInteger();
+                executor = Executors.newFixedThreadPool(maxConcurrentBuilds, runnable -> {
+                    Thread thread = new Thread(runnable, "Scaffolding-Build-" + threadId.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return new BuildScheduler(executor, maxConcurrentBuilds, maxBlocksInFlight, chunkResendThreshold, statsListener);
+        }
+
+    }
+
+}
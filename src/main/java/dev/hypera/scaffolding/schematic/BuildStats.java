@@ -0,0 +1,40 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import dev.hypera.scaffolding.region.Region;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The network traffic caused by a single build.
+ * <br><br>
+ * Packets and bytes are counted once per viewer. Bytes are the uncompressed packet size, estimated for chunk
+ * packets.
+ * @param region The built region.
+ * @param blocksChanged The number of blocks that changed. Blocks the build set to the state they already had are not counted.
+ * @param chunksResent The number of chunks sent as a whole.
+ * @param multiBlockChanges The number of multi block change packets created.
+ * @param packetsSent The number of packets sent.
+ * @param bytesSent The number of bytes sent.
+ */
+public record BuildStats(@NotNull Region region, long blocksChanged, int chunksResent, int multiBlockChanges, long packetsSent, long bytesSent) {}
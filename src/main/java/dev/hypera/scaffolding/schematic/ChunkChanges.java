@@ -0,0 +1,342 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.Section;
+import net.minestom.server.instance.block.Block;
+import net.minestom.server.instance.palette.Palette;
+import net.minestom.server.network.packet.server.play.MultiBlockChangePacket;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * The blocks a build changes in a single chunk, grouped by section. Blocks that are already set are neither written
+ * nor sent.
+ * <br><br>
+ * Once applied, the changes are sent either as one full chunk packet or as one multi block change packet per
+ * section, whichever the change density suggests is cheaper. Builds that place their blocks in several passes apply
+ * the same changes once per pass, and the density covers every pass so far.
+ */
+final class ChunkChanges {
+
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Coordinates, heightmaps and light masks of a chunk packet, roughly
+    private static final int CHUNK_PACKET_OVERHEAD = 700;
+    // Packet id, section position and light flag of a multi block change packet
+    private static final int MULTI_BLOCK_CHANGE_OVERHEAD = 1 + Long.BYTES + 1;
+
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minSection;
+    private final short[][] positions;
+    private final short[][] stateIds;
+    private final int[] sizes;
+    private int queued;
+    private int blocks;
+    private long totalBlocks;
+
+    private boolean resend;
+    private int multiBlockChanges;
+    private long packetsSent;
+    private long bytesSent;
+
+    /**
+     * Creates an empty set of changes.
+     * @param chunkX The chunk x coordinate.
+     * @param chunkZ The chunk z coordinate.
+     * @param minSection The lowest section that can be changed.
+     * @param sectionCount The number of sections that can be changed.
+     */
+    ChunkChanges(int chunkX, int chunkZ, int minSection, int sectionCount) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minSection = minSection;
+        this.positions = new short[sectionCount][];
+        this.stateIds = new short[sectionCount][];
+        this.sizes = new int[sectionCount];
+    }
+
+    /**
+     * Adds a block to place. Blocks that turn out to be set already are dropped when the changes are applied.
+     * @param x The world x coordinate.
+     * @param y The world y coordinate.
+     * @param z The world z coordinate.
+     * @param stateId The new state id.
+     */
+    void add(int x, int y, int z, short stateId) {
+        int section = (y >> 4) - minSection;
+        int size = sizes[section];
+        if (positions[section] == null) {
+            positions[section] = new short[INITIAL_CAPACITY];
+            stateIds[section] = new short[INITIAL_CAPACITY];
+        } else if (size == positions[section].length) {
+            int capacity = Math.min(SECTION_SIZE, size << 1);
+            positions[section] = Arrays.copyOf(positions[section], capacity);
+            stateIds[section] = Arrays.copyOf(stateIds[section], capacity);
+        }
+
+        positions[section][size] = (short) ((y & 15) << 8 | (z & 15) << 4 | (x & 15));
+        stateIds[section][size] = stateId;
+        sizes[section] = size + 1;
+        queued++;
+    }
+
+    /**
+     * Writes the changes added since the last pass into a loaded chunk, and sends them to its viewers unless the
+     * chunk needs to be resent. Blocks that are already set are dropped first, so only real changes are written,
+     * counted and sent.
+     * <br><br>
+     * Once at least {@code threshold} of the chunk's blocks changed over all passes, the changed sections are written
+     * straight into their palettes and the chunk {@link #needsResend() needs to be resent} when the build is done.
+     * Until then, every block is set through the chunk and every changed section is sent as a multi block change.
+     * @param chunk The chunk.
+     * @param threshold The fraction of changed blocks above which the chunk is resent.
+     */
+    void apply(@NotNull Chunk chunk, double threshold) {
+        multiBlockChanges = 0;
+        packetsSent = 0;
+        bytesSent = 0;
+
+        synchronized (chunk) {
+            blocks = dropUnchanged(chunk);
+            totalBlocks += blocks;
+            double density = (double) totalBlocks / ((long) SECTION_SIZE * (chunk.getMaxSection() - chunk.getMinSection()));
+            resend |= density >= threshold;
+            if (resend) writePalettes(chunk);
+            else setBlocks(chunk);
+        }
+
+        if (resend) {
+            clear();
+            return;
+        }
+
+        int viewers = chunk.getViewers().size();
+
+        for (int section = 0; section < sizes.length; section++) {
+            int size = sizes[section];
+            if (size == 0) continue;
+
+            long bytes = MULTI_BLOCK_CHANGE_OVERHEAD + varIntSize(size);
+            long[] entries = new long[size];
+            for (int i = 0; i < size; i++) {
+                short position = positions[section][i];
+                // The packet orders the section relative coordinates x, z, y
+                entries[i] = (long) stateIds[section][i] << 12 | (position & 15) << 8 | ((position >> 4) & 15) << 4 | (position >> 8);
+                bytes += varLongSize(entries[i]);
+            }
+
+            chunk.sendPacketToViewers(new MultiBlockChangePacket(sectionPosition(minSection + section), false, entries));
+            multiBlockChanges++;
+            packetsSent += viewers;
+            bytesSent += viewers * bytes;
+        }
+        clear();
+    }
+
+    /**
+     * Sends a chunk that {@link #needsResend() needs to be resent} to its viewers as a whole.
+     * @param chunk The chunk.
+     */
+    void resend(@NotNull Chunk chunk) {
+        int viewers = chunk.getViewers().size();
+        chunk.sendChunk();
+        multiBlockChanges = 0;
+        packetsSent = viewers;
+        bytesSent = (long) viewers * estimateChunkPacketSize(chunk);
+    }
+
+    /**
+     * Drops the changes of the last pass, keeping only the number of blocks changed so far.
+     */
+    void clear() {
+        Arrays.fill(positions, null);
+        Arrays.fill(stateIds, null);
+        Arrays.fill(sizes, 0);
+        queued = 0;
+    }
+
+    /**
+     * Removes the changes that would not change a block, including those in sections outside the chunk.
+     * @param chunk The chunk, locked by the caller.
+     * @return The number of changes left.
+     */
+    private int dropUnchanged(@NotNull Chunk chunk) {
+        int changed = 0;
+        for (int section = 0; section < sizes.length; section++) {
+            int sectionY = minSection + section;
+            if (sectionY < chunk.getMinSection() || sectionY >= chunk.getMaxSection()) {
+                sizes[section] = 0;
+                continue;
+            }
+
+            Palette palette = chunk.getSection(sectionY).blockPalette();
+            int size = 0;
+            for (int i = 0; i < sizes[section]; i++) {
+                short position = positions[section][i];
+                if (palette.get(position & 15, position >> 8, (position >> 4) & 15) == stateIds[section][i]) continue;
+
+                positions[section][size] = position;
+                stateIds[section][size] = stateIds[section][i];
+                size++;
+            }
+            sizes[section] = size;
+            changed += size;
+        }
+        return changed;
+    }
+
+    private void setBlocks(@NotNull Chunk chunk) {
+        for (int section = 0; section < sizes.length; section++) {
+            int baseY = (minSection + section) << 4;
+            for (int i = 0; i < sizes[section]; i++) {
+                short position = positions[section][i];
+                Block block = Block.fromStateId(stateIds[section][i]);
+                if (block != null) chunk.setBlock(position & 15, baseY + (position >> 8), (position >> 4) & 15, block);
+            }
+        }
+    }
+
+    private void writePalettes(@NotNull Chunk chunk) {
+        int lastX = 0;
+        int lastY = 0;
+        int lastZ = 0;
+        Block last = null;
+        for (int section = 0; section < sizes.length; section++) {
+            if (sizes[section] == 0) continue;
+
+            int baseY = (minSection + section) << 4;
+            Palette palette = chunk.getSection(minSection + section).blockPalette();
+            for (int i = 0; i < sizes[section]; i++) {
+                short position = positions[section][i];
+                Block block = Block.fromStateId(stateIds[section][i]);
+                if (block == null) continue;
+
+                int x = position & 15;
+                int y = baseY + (position >> 8);
+                int z = (position >> 4) & 15;
+                // Block entities, and blocks replacing one, need the chunk to track them
+                if (block.registry().isBlockEntity() || chunk.getBlock(x, y, z, Block.Getter.Condition.CACHED) != null) {
+                    chunk.setBlock(x, y, z, block);
+                    continue;
+                }
+
+                palette.set(x, position >> 8, z, stateIds[section][i]);
+                lastX = x;
+                lastY = y;
+                lastZ = z;
+                last = block;
+            }
+        }
+
+        // Setting one of the blocks through the chunk invalidates its cached packets
+        if (last != null) chunk.setBlock(lastX, lastY, lastZ, last);
+    }
+
+    int getChunkX() {
+        return chunkX;
+    }
+
+    int getChunkZ() {
+        return chunkZ;
+    }
+
+    /**
+     * Checks whether changes were added since the last pass.
+     * @return True if there are changes to apply.
+     */
+    boolean hasQueued() {
+        return queued > 0;
+    }
+
+    /**
+     * Gets the number of blocks the last pass changed.
+     * @return The number of changed blocks.
+     */
+    int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Checks whether the chunk changed enough to be resent as a whole, rather than through multi block changes.
+     * @return True if the chunk must be resent once the build is done.
+     */
+    boolean needsResend() {
+        return resend;
+    }
+
+    int getMultiBlockChanges() {
+        return multiBlockChanges;
+    }
+
+    long getPacketsSent() {
+        return packetsSent;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    private long sectionPosition(int sectionY) {
+        return ((long) chunkX & 0x3FFFFF) << 42 | ((long) chunkZ & 0x3FFFFF) << 20 | (sectionY & 0xFFFFF);
+    }
+
+    private static long estimateChunkPacketSize(@NotNull Chunk chunk) {
+        long size = CHUNK_PACKET_OVERHEAD;
+        for (int sectionY = chunk.getMinSection(); sectionY < chunk.getMaxSection(); sectionY++) {
+            Section section = chunk.getSection(sectionY);
+            size += Short.BYTES + estimatePaletteSize(section.blockPalette()) + estimatePaletteSize(section.biomePalette());
+        }
+        return size;
+    }
+
+    private static long estimatePaletteSize(@NotNull Palette palette) {
+        int bitsPerEntry = palette.bitsPerEntry();
+        // A single value palette only holds the value
+        if (bitsPerEntry == 0) return 1 + 3 + 1;
+
+        int longs = (palette.maxSize() + (64 / bitsPerEntry) - 1) / (64 / bitsPerEntry);
+        long size = 1 + varIntSize(longs) + (long) longs * Long.BYTES;
+        // Indirect palettes also list their values, assume two bytes each
+        if (bitsPerEntry < palette.maxBitsPerEntry()) size += 1 + (2L << bitsPerEntry);
+        return size;
+    }
+
+    private static int varIntSize(int value) {
+        return varLongSize(value & 0xFFFFFFFFL);
+    }
+
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+}
@@ -27,6 +27,7 @@ import net.minestom.server.coordinate.Point;
 import net.minestom.server.instance.Instance;
 import net.minestom.server.instance.block.Block;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jglrxavpok.hephaistos.nbt.CompressedProcesser;
 import org.jglrxavpok.hephaistos.nbt.NBTCompound;
 import org.jglrxavpok.hephaistos.nbt.NBTException;
@@ -35,7 +36,10 @@ import org.jglrxavpok.hephaistos.nbt.NBTReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public interface Schematic {
 
@@ -48,8 +52,41 @@ public interface Schematic {
     void read(@NotNull NBTCompound nbtTag) throws NBTException;
     void write(@NotNull OutputStream outputStream, @NotNull Region region) throws IOException;
 
+    /**
+     * Builds the schematic in an instance using the {@link BuildScheduler#getDefault() default build scheduler}.
+     * @param instance the instance
+     * @param position the position to build the schematic at
+     * @return a future completed with the built region once all blocks have been placed
+     */
     CompletableFuture<Region> build(Instance instance, Point position);
 
+    /**
+     * Builds the part of the schematic inside a clip region using the {@link BuildScheduler#getDefault() default
+     * build scheduler}.
+     * @param instance the instance
+     * @param position the position to build the schematic at
+     * @param clip the region to build inside of
+     * @return a future completed with the built region once all blocks have been placed
+     * @see #build(Instance, Point, Region, ChunkPredicate)
+     */
+    default CompletableFuture<Region> build(Instance instance, Point position, @NotNull Region clip) {
+        return build(instance, position, clip, null);
+    }
+
+    /**
+     * Builds part of the schematic using the {@link BuildScheduler#getDefault() default build scheduler}.
+     * <br><br>
+     * Sections outside the clip region and chunk columns rejected by the predicate are skipped without visiting
+     * their blocks, and rejected chunks are not loaded, so the cost is proportional to the part built.
+     * @param instance the instance
+     * @param position the position to build the schematic at
+     * @param clip the region to build inside of, in world coordinates, or null to build the whole schematic
+     * @param chunks the chunks to build in, or null to build in every chunk
+     * @return a future completed with the built region once all blocks have been placed, with a clip region the
+     * part of it the schematic covers
+     */
+    CompletableFuture<Region> build(Instance instance, Point position, @Nullable Region clip, @Nullable ChunkPredicate chunks);
+
     short getWidth();
     short getHeight();
     short getLength();
@@ -62,6 +99,118 @@ public interface Schematic {
      * Applies the schematic to the given block setter.
      * @param setter the block setter
      */
-    void apply(@NotNull Block.Setter setter);
+    default void apply(@NotNull Block.Setter setter) {
+        forEachBlock((x, y, z, stateId) -> {
+            Block block = Block.fromStateId(stateId);
+            if (block == null) throw new IllegalStateException("Invalid block state id: " + stateId);
+            setter.setBlock(x, y, z, block);
+        });
+    }
+
+    /**
+     * Creates a view of this schematic with every block passed through the given mapper.
+     * <br><br>
+     * Only the palette is remapped, so this costs time proportional to the number of distinct blocks, and the view
+     * shares its block storage with this schematic. Views cannot be written.
+     * @param mapper the mapper, returning null to remove a block
+     * @return the remapped schematic
+     */
+    @NotNull Schematic remap(@NotNull Function<@NotNull Block, @Nullable Block> mapper);
+
+    /**
+     * Creates a view of this schematic with only the blocks matching the given predicate. Removed blocks are not
+     * placed at all, rather than being replaced by air.
+     * <br><br>
+     * Like {@link #remap(Function)}, only the palette is filtered.
+     * @param predicate the predicate
+     * @return the filtered schematic
+     */
+    @NotNull Schematic filter(@NotNull Predicate<@NotNull Block> predicate);
+
+    /**
+     * Creates a view of part of this schematic. Blocks in the view keep the position they have in this schematic, so
+     * building the view at the same position places a subset of the same blocks.
+     * <br><br>
+     * The view shares its block storage and palette with this schematic, and cannot be written.
+     * @param x the x coordinate of the first block, relative to the schematic's minimum corner
+     * @param y the y coordinate of the first block, relative to the schematic's minimum corner
+     * @param z the z coordinate of the first block, relative to the schematic's minimum corner
+     * @param width the width of the view
+     * @param height the height of the view
+     * @param length the length of the view
+     * @return the sub-volume
+     * @throws IllegalArgumentException if the sub-volume is not inside the schematic
+     */
+    @NotNull Schematic subVolume(int x, int y, int z, int width, int height, int length);
+
+    /**
+     * Gets the position of every block with the given state, in the same coordinates as
+     * {@link #forEachBlock(BlockConsumer)}.
+     * <br><br>
+     * Queries use an index built on first use, which counts the blocks of every section and remembers the positions
+     * of each block queried. Repeated queries cost time proportional to the number of matches.
+     * @param block the block state
+     * @return the positions
+     */
+    @NotNull List<Point> positionsOf(@NotNull Block block);
+
+    /**
+     * Counts the blocks with the given state, using the same index as {@link #positionsOf(Block)}.
+     * @param block the block state
+     * @return the number of blocks
+     */
+    long count(@NotNull Block block);
+
+    /**
+     * Checks whether a 16x16x16 section of the schematic contains a block with the given state, using the same index
+     * as {@link #positionsOf(Block)}.
+     * <br>
+     * Sections are counted from the schematic's minimum corner, not aligned to the world.
+     * @param sectionX the section x coordinate
+     * @param sectionY the section y coordinate
+     * @param sectionZ the section z coordinate
+     * @param block the block state
+     * @return true if the section contains the block
+     */
+    boolean sectionContains(int sectionX, int sectionY, int sectionZ, @NotNull Block block);
+
+    /**
+     * Visits every block of the schematic, including air, without allocating. Blocks removed by
+     * {@link #filter(Predicate)} or {@link #remap(Function)} are skipped.
+     * <br>
+     * Coordinates are relative to the position the schematic is placed at, offsets included.
+     * @param consumer the block consumer
+     */
+    void forEachBlock(@NotNull BlockConsumer consumer);
+
+    /**
+     * Visits every 16x16x16 section the schematic overlaps when placed at the given origin.
+     * <br><br>
+     * Sections are aligned to the world's section grid, and their state ids are indexed by
+     * {@code y << 8 | z << 4 | x} using section relative coordinates. Positions outside the schematic, or whose
+     * block was removed, are -1.
+     * <br>
+     * The array is reused between sections and is only valid for the duration of the callback.
+     * @param originX the x coordinate the schematic is placed at
+     * @param originY the y coordinate the schematic is placed at
+     * @param originZ the z coordinate the schematic is placed at
+     * @param consumer the section consumer
+     */
+    void forEachSection(int originX, int originY, int originZ, @NotNull SectionConsumer consumer);
+
+    @FunctionalInterface
+    interface BlockConsumer {
+        void accept(int x, int y, int z, short stateId);
+    }
+
+    @FunctionalInterface
+    interface SectionConsumer {
+        void accept(int sectionX, int sectionY, int sectionZ, short @NotNull [] stateIds);
+    }
+
+    @FunctionalInterface
+    interface ChunkPredicate {
+        boolean test(int chunkX, int chunkZ);
+    }
 
 }
@@ -0,0 +1,66 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * The header of a schematic, read without decoding its blocks.
+ * @param format The schematic format.
+ * @param width The width of the schematic.
+ * @param height The height of the schematic.
+ * @param length The length of the schematic.
+ * @param offsetX The WorldEdit x offset.
+ * @param offsetY The WorldEdit y offset.
+ * @param offsetZ The WorldEdit z offset.
+ * @param palette The block palette, ordered by palette index. Empty for MCEdit schematics, which have no palette.
+ * @param dataVersion The Minecraft data version, or -1 if the schematic does not specify one.
+ */
+public record SchematicInfo(
+        @NotNull Format format,
+        short width,
+        short height,
+        short length,
+        int offsetX,
+        int offsetY,
+        int offsetZ,
+        @NotNull List<String> palette,
+        int dataVersion
+) {
+
+    /**
+     * Gets the number of blocks in the schematic, including air.
+     * @return The block count.
+     */
+    public long blockCount() {
+        return (long) width * height * length;
+    }
+
+    public enum Format {
+        SPONGE,
+        MCEDIT
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the header tags of a schematic straight from the NBT stream, skipping every other tag without decoding it.
+ * <br>
+ * Reading stops as soon as all header tags of the detected format have been seen, unless a
+ * {@link BlockDataHandler} is given, in which case the whole stream is read and block arrays are passed to it.
+ */
+public final class SchematicProbe {
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    private final @NotNull DataInputStream in;
+    private final @Nullable BlockDataHandler handler;
+
+    private SchematicInfo.Format format;
+    private Short width;
+    private Short height;
+    private Short length;
+    private Integer offsetX;
+    private Integer offsetY;
+    private Integer offsetZ;
+    private List<String> palette;
+    private Integer version;
+    private int dataVersion = -1;
+
+    private SchematicProbe(@NotNull InputStream inputStream, @Nullable BlockDataHandler handler) {
+        this.in = new DataInputStream(inputStream);
+        this.handler = handler;
+    }
+
+    /**
+     * Probes an uncompressed NBT stream.
+     * @param inputStream The stream, positioned at the root tag.
+     * @return The schematic info, or null if the format is not recognised.
+     * @throws IOException if the stream could not be read.
+     * @throws NBTException if the schematic is invalid.
+     */
+    public static @Nullable SchematicInfo probe(@NotNull InputStream inputStream) throws IOException, NBTException {
+        return new SchematicProbe(inputStream, null).read();
+    }
+
+    /**
+     * Reads an uncompressed NBT stream to the end, passing every block array to the given handler.
+     * @param inputStream The stream, positioned at the root tag.
+     * @param handler The block array handler.
+     * @return The schematic info, or null if the format is not recognised.
+     * @throws IOException if the stream could not be read.
+     * @throws NBTException if the schematic is invalid.
+     */
+    public static @Nullable SchematicInfo read(@NotNull InputStream inputStream, @NotNull BlockDataHandler handler) throws IOException, NBTException {
+        return new SchematicProbe(inputStream, handler).read();
+    }
+
+    /**
+     * Gets the header read so far, if it is complete enough to place blocks.
+     * @return The schematic info, or null if tags are still missing.
+     */
+    public @Nullable SchematicInfo header() {
+        if (format == null || width == null || height == null || length == null) return null;
+        if (offsetX == null || offsetY == null || offsetZ == null) return null;
+        if (format == SchematicInfo.Format.SPONGE && palette == null) return null;
+        return new SchematicInfo(format, width, height, length, offsetX, offsetY, offsetZ,
+                palette == null ? List.of() : palette, dataVersion);
+    }
+
+    private @Nullable SchematicInfo read() throws IOException, NBTException {
+        if (in.readUnsignedByte() != TAG_COMPOUND) throw new NBTException("Invalid Schematic: Root is not a compound");
+        in.readUTF();
+
+        try {
+            int type;
+            while ((handler != null || !isComplete()) && (type = in.readUnsignedByte()) != TAG_END) {
+                readRootTag(type, in.readUTF());
+            }
+        } catch (EOFException e) {
+            // Truncated after the header, use what has been read
+        }
+
+        if (format == null) return null;
+        if (width == null) throw new NBTException("Invalid Schematic: No Width");
+        if (height == null) throw new NBTException("Invalid Schematic: No Height");
+        if (length == null) throw new NBTException("Invalid Schematic: No Length");
+        if (offsetX == null) throw new NBTException("Invalid Schematic: No WEOffsetX");
+        if (offsetY == null) throw new NBTException("Invalid Schematic: No WEOffsetY");
+        if (offsetZ == null) throw new NBTException("Invalid Schematic: No WEOffsetZ");
+        if (format == SchematicInfo.Format.SPONGE && palette == null) throw new NBTException("Invalid Schematic: No Palette");
+        return header();
+    }
+
+    private boolean isComplete() {
+        if (format == null || width == null || height == null || length == null) return false;
+        if (offsetX == null || offsetY == null || offsetZ == null) return false;
+        if (format == SchematicInfo.Format.MCEDIT) return true;
+
+        // Sponge schematics only have a data version from version 2
+        return palette != null && (dataVersion != -1 || (version != null && version < 2));
+    }
+
+    private void readRootTag(int type, @NotNull String name) throws IOException, NBTException {
+        switch (name) {
+            case "Blocks", "Materials", "AddBlocks" -> detect(SchematicInfo.Format.MCEDIT);
+            case "BlockData", "PaletteMax", "Version", "DataVersion" -> detect(SchematicInfo.Format.SPONGE);
+        }
+
+        if (type == TAG_BYTE_ARRAY && handler != null && (name.equals("BlockData") || name.equals("Blocks") || name.equals("AddBlocks"))) {
+            int size = in.readInt();
+            if (size < 0) throw new NBTException("Invalid Schematic: Negative " + name + " length");
+            handler.read(this, name, in, size);
+        } else if (type == TAG_SHORT) {
+            short value = in.readShort();
+            switch (name) {
+                case "Width" -> width = value;
+                case "Height" -> height = value;
+                case "Length" -> length = value;
+            }
+        } else if (type == TAG_INT) {
+            int value = in.readInt();
+            switch (name) {
+                case "WEOffsetX" -> {
+                    detect(SchematicInfo.Format.MCEDIT);
+                    offsetX = value;
+                }
+                case "WEOffsetY" -> offsetY = value;
+                case "WEOffsetZ" -> offsetZ = value;
+                case "Version" -> version = value;
+                case "DataVersion" -> dataVersion = value;
+            }
+        } else if (type == TAG_COMPOUND && name.equals("Palette")) {
+            detect(SchematicInfo.Format.SPONGE);
+            readPalette();
+        } else if (type == TAG_COMPOUND && name.equals("Metadata")) {
+            readMetadata();
+        } else {
+            skip(type);
+        }
+    }
+
+    private void readPalette() throws IOException {
+        Map<Integer, String> entries = new TreeMap<>();
+        int type;
+        while ((type = in.readUnsignedByte()) != TAG_END) {
+            String name = in.readUTF();
+            if (type == TAG_INT) entries.put(in.readInt(), name);
+            else skip(type);
+        }
+        palette = List.copyOf(entries.values());
+    }
+
+    private void readMetadata() throws IOException {
+        int type;
+        while ((type = in.readUnsignedByte()) != TAG_END) {
+            String name = in.readUTF();
+            if (type != TAG_INT) {
+                skip(type);
+                continue;
+            }
+
+            int value = in.readInt();
+            switch (name) {
+                case "WEOffsetX" -> offsetX = value;
+                case "WEOffsetY" -> offsetY = value;
+                case "WEOffsetZ" -> offsetZ = value;
+            }
+        }
+    }
+
+    private void detect(@NotNull SchematicInfo.Format format) {
+        if (this.format == null) this.format = format;
+    }
+
+    private void skip(int type) throws IOException {
+        switch (type) {
+            case TAG_BYTE -> skipFully(Byte.BYTES);
+            case TAG_SHORT -> skipFully(Short.BYTES);
+            case TAG_INT, TAG_FLOAT -> skipFully(Integer.BYTES);
+            case TAG_LONG, TAG_DOUBLE -> skipFully(Long.BYTES);
+            case TAG_BYTE_ARRAY -> skipFully(in.readInt());
+            case TAG_STRING -> skipFully(in.readUnsignedShort());
+            case TAG_INT_ARRAY -> skipFully((long) in.readInt() * Integer.BYTES);
+            case TAG_LONG_ARRAY -> skipFully((long) in.readInt() * Long.BYTES);
+            case TAG_LIST -> {
+                int elementType = in.readUnsignedByte();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) skip(elementType);
+            }
+            case TAG_COMPOUND -> {
+                int elementType;
+                while ((elementType = in.readUnsignedByte()) != TAG_END) {
+                    skipFully(in.readUnsignedShort());
+                    skip(elementType);
+                }
+            }
+            default -> throw new IOException("Invalid NBT tag type: " + type);
+        }
+    }
+
+    /**
+     * Receives the block arrays of a schematic while it is being read.
+     */
+    @FunctionalInterface
+    public interface BlockDataHandler {
+
+        /**
+         * Reads a block array. Exactly {@code size} bytes must be read from the stream.
+         * @param probe The probe, whose {@link #header()} may already be complete.
+         * @param name The tag name, BlockData for Sponge schematics, Blocks or AddBlocks for MCEdit schematics.
+         * @param in The stream, positioned at the first byte of the array.
+         * @param size The array size in bytes.
+         * @throws IOException if the stream could not be read.
+         * @throws NBTException if the array is invalid.
+         */
+        void read(@NotNull SchematicProbe probe, @NotNull String name, @NotNull DataInputStream in, int size) throws IOException, NBTException;
+
+    }
+
+    private void skipFully(long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                // Some streams only report the end of the stream on read
+                if (in.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+}
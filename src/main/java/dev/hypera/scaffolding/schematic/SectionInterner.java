@@ -0,0 +1,160 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A process-wide table of immutable section arrays, keyed by their contents.
+ * <br><br>
+ * Schematics and chunk templates intern their section arrays once they are complete, so identical sections, such
+ * as solid stone or a repeated structure, are only stored once no matter how many schematics contain them.
+ * Entries are weakly referenced and disappear once no schematic uses them.
+ * <br>
+ * Interned arrays are shared and must never be modified.
+ */
+public final class SectionInterner {
+
+    private static final Map<Integer, List<Entry>> TABLE = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<short[]> QUEUE = new ReferenceQueue<>();
+
+    private static final LongAdder LOOKUPS = new LongAdder();
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder BYTES_SAVED = new LongAdder();
+
+    private SectionInterner() {}
+
+    /**
+     * Gets the shared array with the same contents as the given array, registering the given array if there is
+     * none.
+     * @param section The section array, which must not be modified afterwards.
+     * @return The shared array.
+     */
+    public static short @NotNull [] intern(short @NotNull [] section) {
+        expunge();
+        LOOKUPS.increment();
+
+        int hash = Arrays.hashCode(section);
+        short[][] result = new short[1][];
+        TABLE.compute(hash, (key, bucket) -> {
+            if (bucket != null) {
+                for (Entry entry : bucket) {
+                    short[] existing = entry.get();
+                    if (existing != null && Arrays.equals(existing, section)) {
+                        result[0] = existing;
+                        return bucket;
+                    }
+                }
+            } else {
+                bucket = new ArrayList<>(1);
+            }
+
+            bucket.add(new Entry(section, hash));
+            result[0] = section;
+            return bucket;
+        });
+
+        if (result[0] != section) {
+            HITS.increment();
+            BYTES_SAVED.add((long) section.length * Short.BYTES);
+        }
+        return result[0];
+    }
+
+    /**
+     * Gets the number of arrays that have been interned.
+     * @return The number of lookups.
+     */
+    public static long getLookups() {
+        return LOOKUPS.sum();
+    }
+
+    /**
+     * Gets the number of interned arrays that were replaced by an existing identical array.
+     * @return The number of hits.
+     */
+    public static long getHits() {
+        return HITS.sum();
+    }
+
+    /**
+     * Gets the fraction of interned arrays that were replaced by an existing identical array.
+     * @return The hit rate, between 0 and 1.
+     */
+    public static double getHitRate() {
+        long lookups = getLookups();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+
+    /**
+     * Gets the total size of the arrays that were replaced by an existing identical array.
+     * @return The number of bytes saved.
+     */
+    public static long getBytesSaved() {
+        return BYTES_SAVED.sum();
+    }
+
+    /**
+     * Gets the number of distinct arrays currently in the table.
+     * @return The number of entries.
+     */
+    public static int getEntries() {
+        expunge();
+        int entries = 0;
+        for (List<Entry> bucket : TABLE.values()) entries += bucket.size();
+        return entries;
+    }
+
+    private static void expunge() {
+        Reference<? extends short[]> reference;
+        while ((reference = QUEUE.poll()) != null) {
+            Entry entry = (Entry) reference;
+            TABLE.computeIfPresent(entry.hash, (key, bucket) -> {
+                bucket.remove(entry);
+                return bucket.isEmpty() ? null : bucket;
+            });
+        }
+    }
+
+    private static final class Entry extends WeakReference<short[]> {
+
+        private final int hash;
+
+        private Entry(short @NotNull [] section, int hash) {
+            super(section, QUEUE);
+            this.hash = hash;
+        }
+
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic;
+
+import dev.hypera.scaffolding.region.Region;
+import dev.hypera.scaffolding.schematic.impl.MCEditSchematic;
+import dev.hypera.scaffolding.schematic.impl.SpongeSchematic;
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.coordinate.Point;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.instance.block.Block;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Pastes a schematic while it is still being decoded.
+ * <br><br>
+ * The task places blocks on the scheduler's executor, while a decoder reads the stream and cuts the blocks into
+ * slabs of up to 16 layers, handed over through a bounded queue, so at most {@link #QUEUE_CAPACITY} slabs plus the
+ * two being worked on are held in memory. Each slab is written into the chunks and sent as multi block changes
+ * before the next one is taken. Chunks that changed enough over all slabs so far are written straight into their
+ * palettes instead, and resent once the whole schematic has been placed.
+ * <br>
+ * Decoders are only started for running tasks, so there are never more of them than the schedulers allow concurrent
+ * builds. The decoder closes the stream once it has been read. Pastes that end before their decoder starts, because
+ * they were cancelled while queued or could not be started, close it when they end.
+ * <br><br>
+ * Sponge block data is decoded straight from the stream when the header tags come before it. Otherwise, and for
+ * MCEdit schematics, the raw block array is buffered until the end of the stream and sliced from there.
+ */
+final class StreamBuildTask extends BuildScheduler.Task {
+
+    private static final int SLAB_HEIGHT = 16;
+    private static final int QUEUE_CAPACITY = 2;
+    private static final long POLL_INTERVAL = 100;
+    private static final Slab END = new Slab(0, new short[0]);
+    private static final Executor DECODERS;
+
+    static {
+        AtomicInteger threadId = new AtomicInteger();
+        DECODERS = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Scaffolding-Paste-Decoder-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final @NotNull InputStream inputStream;
+    private final @NotNull Point position;
+    private final @NotNull CompletableFuture<SchematicInfo> headerRead = new CompletableFuture<>();
+    private final @NotNull BlockingQueue<Slab> slabs = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final @NotNull AtomicBoolean streamClaimed = new AtomicBoolean();
+
+    private SchematicInfo header;
+    private short[] palette;
+    private int layerSize;
+    private boolean decoded;
+
+    private byte @Nullable [] blockData;
+    private byte @Nullable [] blocks;
+    private byte @Nullable [] addBlocks;
+
+    private short @Nullable [] slab;
+    private int slabIndex;
+    private int slabY;
+
+    StreamBuildTask(@NotNull InputStream inputStream, @NotNull Instance instance, @NotNull Point position) {
+        super(instance, 0);
+        this.inputStream = inputStream;
+        this.position = position;
+
+        // Stop waiting for the header once the paste has failed or been cancelled, and close the stream if no
+        // decoder has taken it over
+        future.whenComplete((region, throwable) -> {
+            headerRead.cancel(false);
+            if (streamClaimed.compareAndSet(false, true)) closeStream();
+        });
+    }
+
+    @Override
+    void run(@NotNull BuildScheduler scheduler) throws Exception {
+        if (!streamClaimed.compareAndSet(false, true)) throw new CancellationException();
+        try {
+            DECODERS.execute(this::decode);
+        } catch (RejectedExecutionException e) {
+            closeStream();
+            throw e;
+        }
+
+        SchematicInfo info = headerRead.join();
+        scheduler.reserve(this, info.blockCount());
+        place(scheduler, info);
+    }
+
+    private void decode() {
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(inputStream))) {
+            SchematicInfo info = SchematicProbe.read(in, this::readBlockData);
+            if (info == null) throw new NBTException("Invalid Schematic: Unknown format");
+
+            if (!decoded) {
+                start(info);
+                if (info.format() == SchematicInfo.Format.SPONGE) {
+                    if (blockData == null || blockData.length == 0) throw new NBTException("Invalid Schematic: No BlockData");
+                    decodeSponge(new DataInputStream(new ByteArrayInputStream(blockData)), blockData.length);
+                    blockData = null;
+                } else decodeMCEdit();
+            }
+            put(END);
+        } catch (Throwable throwable) {
+            // The placer stops once the future is done
+            future.completeExceptionally(throwable);
+        }
+    }
+
+    private void closeStream() {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            MinecraftServer.getExceptionManager().handleException(e);
+        }
+    }
+
+    private void readBlockData(@NotNull SchematicProbe probe, @NotNull String name, @NotNull DataInputStream in, int size) throws IOException, NBTException {
+        SchematicInfo info = probe.header();
+        if (name.equals("BlockData") && info != null && info.format() == SchematicInfo.Format.SPONGE && !decoded) {
+            start(info);
+            decodeSponge(in, size);
+            decoded = true;
+            return;
+        }
+
+        byte[] data = new byte[size];
+        in.readFully(data);
+        switch (name) {
+            case "BlockData" -> blockData = data;
+            case "Blocks" -> blocks = data;
+            case "AddBlocks" -> addBlocks = data;
+        }
+    }
+
+    private void start(@NotNull SchematicInfo info) throws NBTException {
+        if (info.width() <= 0 || info.height() <= 0 || info.length() <= 0) throw new NBTException("Invalid Schematic: Invalid size");
+
+        header = info;
+        layerSize = info.width() * info.length();
+        if (info.format() == SchematicInfo.Format.SPONGE) palette = SpongeSchematic.resolvePalette(info.palette());
+        headerRead.complete(info);
+    }
+
+    private void decodeSponge(@NotNull DataInputStream in, int size) throws IOException, NBTException {
+        int volume = layerSize * header.height();
+        int decoded = SpongeSchematic.readBlockData(in, size, volume, palette.length, (index, paletteIndex) -> emit(palette[paletteIndex]));
+
+        // Trailing blocks left out of the block data are air, as when reading the whole schematic
+        for (int index = decoded; index < volume; index++) emit(Block.AIR.stateId());
+    }
+
+    private void decodeMCEdit() throws NBTException {
+        if (blocks == null) throw new NBTException("Invalid Schematic: No Blocks");
+        if (blocks.length != layerSize * header.height()) throw new NBTException("Invalid Schematic: Blocks does not match size");
+        byte[] addId = addBlocks == null ? new byte[0] : addBlocks;
+
+        for (int index = 0; index < blocks.length; index++) emit((short) MCEditSchematic.getBlockId(blocks, addId, index));
+        blocks = null;
+        addBlocks = null;
+    }
+
+    private void emit(short stateId) {
+        if (slab == null) {
+            slab = new short[Math.min(SLAB_HEIGHT, header.height() - slabY) * layerSize];
+            slabIndex = 0;
+        }
+
+        slab[slabIndex++] = stateId;
+        if (slabIndex == slab.length) {
+            put(new Slab(slabY, slab));
+            slabY += slab.length / layerSize;
+            slab = null;
+        }
+    }
+
+    private void put(@NotNull Slab slab) {
+        try {
+            while (!slabs.offer(slab, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (future.isDone()) throw new CancellationException();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException();
+        }
+    }
+
+    private void place(@NotNull BuildScheduler scheduler, @NotNull SchematicInfo info) throws InterruptedException {
+        int originX = position.blockX() + info.offsetX();
+        int originY = position.blockY() + info.offsetY();
+        int originZ = position.blockZ() + info.offsetZ();
+        BuildScheduler.loadChunks(instance, originX, originZ, originX + info.width() - 1, originZ + info.length() - 1, null);
+
+        BuildChanges changes = new BuildChanges(originY, originY + info.height() - 1);
+        while (!future.isDone()) {
+            Slab slab = slabs.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            if (slab == null) continue;
+            if (slab == END) {
+                Region region = new Region(instance, position, position.add(info.width(), info.height(), info.length()));
+                changes.finish(instance);
+                scheduler.report(changes.stats(region));
+                future.complete(region);
+                return;
+            }
+
+            int width = info.width();
+            for (int i = 0; i < slab.stateIds().length; i++) {
+                int x = i % width;
+                int z = (i / width) % info.length();
+                int y = slab.minY() + i / layerSize;
+                changes.add(originX + x, originY + y, originZ + z, slab.stateIds()[i]);
+            }
+
+            // Apply the slab before taking the next one, so that placement keeps pace with decoding
+            changes.apply(instance, scheduler.getChunkResendThreshold());
+        }
+    }
+
+    private record Slab(int minY, short @NotNull [] stateIds) {}
+
+}
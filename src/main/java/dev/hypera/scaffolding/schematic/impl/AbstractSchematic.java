@@ -0,0 +1,367 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic.impl;
+
+import dev.hypera.scaffolding.region.Region;
+import dev.hypera.scaffolding.schematic.BuildScheduler;
+import dev.hypera.scaffolding.schematic.Schematic;
+import dev.hypera.scaffolding.schematic.SectionInterner;
+import net.minestom.server.coordinate.Point;
+import net.minestom.server.coordinate.Vec;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.instance.block.Block;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Base class for schematics whose blocks are stored as palette indices.
+ * <br><br>
+ * Blocks are split into sections of up to 16x16x16 blocks, starting at the schematic's minimum corner. Sections on
+ * the far edges are clipped to the schematic, and blocks within a section are indexed by
+ * {@code (y * sectionLength + z) * sectionWidth + x}. Section arrays are {@link SectionInterner interned}, so
+ * identical sections are shared between schematics.
+ * <br>
+ * The palette holds the resolved state id of every index, or -1 for blocks that are not placed.
+ * <br><br>
+ * A schematic may cover only part of its block storage, as is the case for {@link #subVolume(int, int, int, int, int, int)
+ * sub-volumes}. The storage fields then describe the full storage, and the covered part starts at the storage origin.
+ */
+public abstract class AbstractSchematic implements Schematic {
+
+    private static final int SECTION_SIZE = 16 * 16 * 16;
+
+    protected short width;
+    protected short height;
+    protected short length;
+    protected short[] palette;
+    protected short[][] sections;
+    protected int sectionsX;
+    protected int sectionsY;
+    protected int sectionsZ;
+    protected int storageX;
+    protected int storageY;
+    protected int storageZ;
+    protected int storageWidth;
+    protected int storageHeight;
+    protected int storageLength;
+    protected BlockIndex blockIndex;
+
+    protected boolean read = false;
+
+    protected int offsetX;
+    protected int offsetY;
+    protected int offsetZ;
+
+    @Override
+    public CompletableFuture<Region> build(Instance instance, Point position) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        return BuildScheduler.getDefault().submit(this, instance, position);
+    }
+
+    @Override
+    public CompletableFuture<Region> build(Instance instance, Point position, @Nullable Region clip, @Nullable ChunkPredicate chunks) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        return BuildScheduler.getDefault().submit(this, instance, position, clip, chunks);
+    }
+
+    @Override
+    public short getWidth() {
+        return width;
+    }
+
+    @Override
+    public short getHeight() {
+        return height;
+    }
+
+    @Override
+    public short getLength() {
+        return length;
+    }
+
+    @Override
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    @Override
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    @Override
+    public int getOffsetZ() {
+        return offsetZ;
+    }
+
+    @Override
+    public @NotNull Schematic remap(@NotNull Function<@NotNull Block, @Nullable Block> mapper) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        short[] remapped = new short[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            Block block = palette[i] < 0 ? null : Block.fromStateId(palette[i]);
+            Block result = block == null ? null : mapper.apply(block);
+            remapped[i] = result == null ? -1 : result.stateId();
+        }
+        return new SchematicView(this, remapped);
+    }
+
+    @Override
+    public @NotNull Schematic filter(@NotNull Predicate<@NotNull Block> predicate) {
+        return remap(block -> predicate.test(block) ? block : null);
+    }
+
+    @Override
+    public @NotNull Schematic subVolume(int x, int y, int z, int width, int height, int length) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        if (x < 0 || y < 0 || z < 0 || width < 0 || height < 0 || length < 0
+                || x + width > this.width || y + height > this.height || z + length > this.length) {
+            throw new IllegalArgumentException("Sub-volume is outside of the schematic");
+        }
+        return new SchematicView(this, x, y, z, width, height, length);
+    }
+
+    @Override
+    public @NotNull List<Point> positionsOf(@NotNull Block block) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        List<Point> positions = new ArrayList<>();
+        for (int paletteIndex = 0; paletteIndex < palette.length; paletteIndex++) {
+            if (palette[paletteIndex] != block.stateId()) continue;
+
+            for (long packed : blockIndex.positions(paletteIndex)) {
+                int x = BlockIndex.x(packed) - storageX;
+                int y = BlockIndex.y(packed) - storageY;
+                int z = BlockIndex.z(packed) - storageZ;
+                if (contains(x, y, z)) positions.add(new Vec(x + offsetX, y + offsetY, z + offsetZ));
+            }
+        }
+        return positions;
+    }
+
+    @Override
+    public long count(@NotNull Block block) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        long count = 0;
+        for (int paletteIndex = 0; paletteIndex < palette.length; paletteIndex++) {
+            if (palette[paletteIndex] != block.stateId()) continue;
+
+            if (coversStorage()) count += blockIndex.total(paletteIndex);
+            else {
+                for (long packed : blockIndex.positions(paletteIndex)) {
+                    if (contains(BlockIndex.x(packed) - storageX, BlockIndex.y(packed) - storageY, BlockIndex.z(packed) - storageZ)) count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean sectionContains(int sectionX, int sectionY, int sectionZ, @NotNull Block block) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        if (sectionX < 0 || sectionY < 0 || sectionZ < 0) return false;
+        if (sectionX << 4 >= width || sectionY << 4 >= height || sectionZ << 4 >= length) return false;
+
+        for (int paletteIndex = 0; paletteIndex < palette.length; paletteIndex++) {
+            if (palette[paletteIndex] != block.stateId()) continue;
+
+            if (coversStorage()) {
+                if (blockIndex.count(sectionIndex(sectionX, sectionY, sectionZ), paletteIndex) > 0) return true;
+            } else {
+                // Sections of a sub-volume do not line up with the stored sections
+                for (long packed : blockIndex.positions(paletteIndex)) {
+                    int x = BlockIndex.x(packed) - storageX;
+                    int y = BlockIndex.y(packed) - storageY;
+                    int z = BlockIndex.z(packed) - storageZ;
+                    if (contains(x, y, z) && x >> 4 == sectionX && y >> 4 == sectionY && z >> 4 == sectionZ) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void forEachBlock(@NotNull BlockConsumer consumer) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        if (width <= 0 || height <= 0 || length <= 0) return;
+
+        // Only sections overlapping the covered part of the storage are visited
+        int maxX = storageX + width - 1;
+        int maxY = storageY + height - 1;
+        int maxZ = storageZ + length - 1;
+        int baseX = offsetX - storageX;
+        int baseY = offsetY - storageY;
+        int baseZ = offsetZ - storageZ;
+
+        for (int sectionY = storageY >> 4; sectionY <= maxY >> 4; sectionY++) {
+            for (int sectionZ = storageZ >> 4; sectionZ <= maxZ >> 4; sectionZ++) {
+                for (int sectionX = storageX >> 4; sectionX <= maxX >> 4; sectionX++) {
+                    short[] section = sections[sectionIndex(sectionX, sectionY, sectionZ)];
+                    int sectionWidth = sectionSize(sectionX, storageWidth);
+                    int sectionLength = sectionSize(sectionZ, storageLength);
+                    int fromX = Math.max(storageX, sectionX << 4);
+                    int toX = Math.min(maxX, (sectionX << 4) + 15);
+                    int fromY = Math.max(storageY, sectionY << 4);
+                    int toY = Math.min(maxY, (sectionY << 4) + 15);
+                    int fromZ = Math.max(storageZ, sectionZ << 4);
+                    int toZ = Math.min(maxZ, (sectionZ << 4) + 15);
+
+                    for (int y = fromY; y <= toY; y++) {
+                        for (int z = fromZ; z <= toZ; z++) {
+                            int index = ((y & 15) * sectionLength + (z & 15)) * sectionWidth + (fromX & 15);
+                            for (int x = fromX; x <= toX; x++) {
+                                short stateId = palette[section[index++]];
+                                if (stateId >= 0) consumer.accept(baseX + x, baseY + y, baseZ + z, stateId);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void forEachSection(int originX, int originY, int originZ, @NotNull SectionConsumer consumer) {
+        if (!read) throw new IllegalStateException("Schematic not read");
+        if (width <= 0 || height <= 0 || length <= 0) return;
+
+        int minX = originX + offsetX;
+        int minY = originY + offsetY;
+        int minZ = originZ + offsetZ;
+        int maxX = minX + width - 1;
+        int maxY = minY + height - 1;
+        int maxZ = minZ + length - 1;
+
+        short[] section = new short[SECTION_SIZE];
+        for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+            for (int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; sectionZ++) {
+                for (int sectionX = minX >> 4; sectionX <= maxX >> 4; sectionX++) {
+                    Arrays.fill(section, (short) -1);
+
+                    int fromX = Math.max(minX, sectionX << 4);
+                    int toX = Math.min(maxX, (sectionX << 4) + 15);
+                    int fromY = Math.max(minY, sectionY << 4);
+                    int toY = Math.min(maxY, (sectionY << 4) + 15);
+                    int fromZ = Math.max(minZ, sectionZ << 4);
+                    int toZ = Math.min(maxZ, (sectionZ << 4) + 15);
+
+                    for (int y = fromY; y <= toY; y++) {
+                        for (int z = fromZ; z <= toZ; z++) {
+                            int target = (y & 15) << 8 | (z & 15) << 4 | (fromX & 15);
+                            copyRow(fromX - minX + storageX, toX - minX + storageX, y - minY + storageY, z - minZ + storageZ, section, target);
+                        }
+                    }
+
+                    consumer.accept(sectionX, sectionY, sectionZ, section);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits a flat array of palette indices, indexed by {@code (y * length + z) * width + x}, into interned
+     * sections. The dimensions must be set beforehand.
+     * @param blocks The palette indices.
+     */
+    protected void setBlocks(short @NotNull [] blocks) {
+        storageWidth = width;
+        storageHeight = height;
+        storageLength = length;
+        sectionsX = (width + 15) >> 4;
+        sectionsY = (height + 15) >> 4;
+        sectionsZ = (length + 15) >> 4;
+        sections = new short[sectionsX * sectionsY * sectionsZ][];
+
+        for (int sectionY = 0; sectionY < sectionsY; sectionY++) {
+            for (int sectionZ = 0; sectionZ < sectionsZ; sectionZ++) {
+                for (int sectionX = 0; sectionX < sectionsX; sectionX++) {
+                    int sectionWidth = sectionSize(sectionX, width);
+                    int sectionHeight = sectionSize(sectionY, height);
+                    int sectionLength = sectionSize(sectionZ, length);
+                    short[] section = new short[sectionWidth * sectionHeight * sectionLength];
+
+                    int index = 0;
+                    for (int y = 0; y < sectionHeight; y++) {
+                        for (int z = 0; z < sectionLength; z++) {
+                            int source = (((sectionY << 4) + y) * length + (sectionZ << 4) + z) * width + (sectionX << 4);
+                            System.arraycopy(blocks, source, section, index, sectionWidth);
+                            index += sectionWidth;
+                        }
+                    }
+
+                    sections[sectionIndex(sectionX, sectionY, sectionZ)] = SectionInterner.intern(section);
+                }
+            }
+        }
+
+        blockIndex = new BlockIndex(sections, sectionsX, sectionsY, sectionsZ, width, height, length, palette.length);
+    }
+
+    /**
+     * Copies a row of resolved state ids into a world aligned section array.
+     * @param fromX The first storage x coordinate.
+     * @param toX The last storage x coordinate, inclusive.
+     * @param y The storage y coordinate.
+     * @param z The storage z coordinate.
+     * @param target The section array.
+     * @param targetIndex The index of the first block in the section array.
+     */
+    private void copyRow(int fromX, int toX, int y, int z, short @NotNull [] target, int targetIndex) {
+        int sectionY = y >> 4;
+        int sectionZ = z >> 4;
+        int rowOffset = ((y & 15) * sectionSize(sectionZ, storageLength) + (z & 15));
+
+        int x = fromX;
+        while (x <= toX) {
+            int sectionX = x >> 4;
+            int runEnd = Math.min(toX, (sectionX << 4) + 15);
+            short[] section = sections[sectionIndex(sectionX, sectionY, sectionZ)];
+            int source = rowOffset * sectionSize(sectionX, storageWidth) + (x & 15);
+            for (; x <= runEnd; x++) target[targetIndex++] = palette[section[source++]];
+        }
+    }
+
+    private boolean coversStorage() {
+        return storageX == 0 && storageY == 0 && storageZ == 0
+                && width == storageWidth && height == storageHeight && length == storageLength;
+    }
+
+    private boolean contains(int x, int y, int z) {
+        return x >= 0 && y >= 0 && z >= 0 && x < width && y < height && z < length;
+    }
+
+    protected int sectionIndex(int sectionX, int sectionY, int sectionZ) {
+        return (sectionY * sectionsZ + sectionZ) * sectionsX + sectionX;
+    }
+
+    protected static int sectionSize(int section, int size) {
+        return Math.min(16, size - (section << 4));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * An index from palette indices to the sections and positions they occur at, built lazily on the first query.
+ * <br><br>
+ * Per-section counts are built in one pass over the storage. Positions are only collected for the palette indices
+ * that are queried, by scanning the sections that contain them, and are kept afterwards. Positions are packed
+ * storage coordinates, see {@link #x(long)}, {@link #y(long)} and {@link #z(long)}.
+ * <br>
+ * The index works on palette indices rather than state ids, so it is shared by a schematic and all of its views.
+ */
+final class BlockIndex {
+
+    private final short[][] sections;
+    private final int sectionsX;
+    private final int sectionsY;
+    private final int sectionsZ;
+    private final int width;
+    private final int height;
+    private final int length;
+    private final int paletteSize;
+
+    // Guarded by this
+    private short[][] sectionEntries;
+    private int[][] sectionCounts;
+    private long[] totals;
+    private final long[][] positions;
+
+    BlockIndex(short @NotNull [][] sections, int sectionsX, int sectionsY, int sectionsZ, int width, int height, int length, int paletteSize) {
+        this.sections = sections;
+        this.sectionsX = sectionsX;
+        this.sectionsY = sectionsY;
+        this.sectionsZ = sectionsZ;
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.paletteSize = paletteSize;
+        this.positions = new long[paletteSize][];
+    }
+
+    /**
+     * Gets how often a palette index occurs in the whole storage.
+     * @param paletteIndex The palette index.
+     * @return The number of blocks.
+     */
+    synchronized long total(int paletteIndex) {
+        buildCounts();
+        return totals[paletteIndex];
+    }
+
+    /**
+     * Gets how often a palette index occurs in a section.
+     * @param sectionIndex The section index.
+     * @param paletteIndex The palette index.
+     * @return The number of blocks.
+     */
+    synchronized int count(int sectionIndex, int paletteIndex) {
+        buildCounts();
+        int i = Arrays.binarySearch(sectionEntries[sectionIndex], (short) paletteIndex);
+        return i < 0 ? 0 : sectionCounts[sectionIndex][i];
+    }
+
+    /**
+     * Gets the packed storage coordinates of every block with a palette index, in section order.
+     * @param paletteIndex The palette index.
+     * @return The packed positions, which must not be modified.
+     */
+    synchronized long @NotNull [] positions(int paletteIndex) {
+        long[] result = positions[paletteIndex];
+        if (result != null) return result;
+
+        buildCounts();
+        result = new long[(int) totals[paletteIndex]];
+        int found = 0;
+        for (int sectionY = 0; sectionY < sectionsY && found < result.length; sectionY++) {
+            for (int sectionZ = 0; sectionZ < sectionsZ; sectionZ++) {
+                for (int sectionX = 0; sectionX < sectionsX; sectionX++) {
+                    int sectionIndex = (sectionY * sectionsZ + sectionZ) * sectionsX + sectionX;
+                    if (Arrays.binarySearch(sectionEntries[sectionIndex], (short) paletteIndex) < 0) continue;
+
+                    short[] section = sections[sectionIndex];
+                    int sectionWidth = AbstractSchematic.sectionSize(sectionX, width);
+                    int sectionLength = AbstractSchematic.sectionSize(sectionZ, length);
+                    for (int index = 0; index < section.length; index++) {
+                        if (section[index] != paletteIndex) continue;
+
+                        int x = (sectionX << 4) + index % sectionWidth;
+                        int z = (sectionZ << 4) + (index / sectionWidth) % sectionLength;
+                        int y = (sectionY << 4) + index / (sectionWidth * sectionLength);
+                        result[found++] = pack(x, y, z);
+                    }
+                }
+            }
+        }
+
+        positions[paletteIndex] = result;
+        return result;
+    }
+
+    static long pack(int x, int y, int z) {
+        return (long) y << 40 | (long) z << 20 | x;
+    }
+
+    static int x(long packed) {
+        return (int) (packed & 0xFFFFF);
+    }
+
+    static int y(long packed) {
+        return (int) (packed >>> 40);
+    }
+
+    static int z(long packed) {
+        return (int) ((packed >>> 20) & 0xFFFFF);
+    }
+
+    private void buildCounts() {
+        if (totals != null) return;
+
+        long[] totals = new long[paletteSize];
+        int[] scratch = new int[paletteSize];
+        sectionEntries = new short[sections.length][];
+        sectionCounts = new int[sections.length][];
+        for (int sectionIndex = 0; sectionIndex < sections.length; sectionIndex++) {
+            short[] section = sections[sectionIndex];
+            int distinct = 0;
+            for (short paletteIndex : section) {
+                if (scratch[paletteIndex]++ == 0) distinct++;
+            }
+
+            // Palette indices in ascending order, so they can be binary searched
+            short[] entries = new short[distinct];
+            int[] counts = new int[distinct];
+            int i = 0;
+            for (int paletteIndex = 0; i < distinct; paletteIndex++) {
+                if (scratch[paletteIndex] == 0) continue;
+                entries[i] = (short) paletteIndex;
+                counts[i++] = scratch[paletteIndex];
+                totals[paletteIndex] += scratch[paletteIndex];
+                scratch[paletteIndex] = 0;
+            }
+            sectionEntries[sectionIndex] = entries;
+            sectionCounts[sectionIndex] = counts;
+        }
+        this.totals = totals;
+    }
+
+}
@@ -22,39 +22,18 @@
  */
 package dev.hypera.scaffolding.schematic.impl;
 
-import dev.hypera.scaffolding.schematic.Schematic;
 import dev.hypera.scaffolding.region.Region;
-import net.minestom.server.coordinate.Point;
-import net.minestom.server.coordinate.Pos;
-import net.minestom.server.instance.Instance;
-import net.minestom.server.instance.batch.AbsoluteBlockBatch;
-import net.minestom.server.instance.block.Block;
 import org.jetbrains.annotations.NotNull;
 import org.jglrxavpok.hephaistos.collections.ImmutableByteArray;
 import org.jglrxavpok.hephaistos.nbt.NBTCompound;
 import org.jglrxavpok.hephaistos.nbt.NBTException;
 
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.concurrent.CompletableFuture;
 
 // https://github.com/EngineHub/WorldEdit/blob/version/5.x/src/main/java/com/sk89q/worldedit/schematic/MCEditSchematicFormat.java
-public class MCEditSchematic implements Schematic {
-
-    private final List<Region.Block> regionBlocks = new ArrayList<>();
-
-    private short width;
-    private short height;
-    private short length;
-    private short[] blocks;
-
-    private boolean read = false;
-
-    private int offsetX;
-    private int offsetY;
-    private int offsetZ;
+public class MCEditSchematic extends AbstractSchematic {
 
     @Override
     public void read(@NotNull NBTCompound nbtTag) throws NBTException {
@@ -63,7 +42,6 @@ public class MCEditSchematic implements Schematic {
         readSizes(nbtTag);
         readBlocksData(nbtTag);
         readOffsets(nbtTag);
-        readBlocks();
 
         read = true;
     }
@@ -104,6 +82,7 @@ public class MCEditSchematic implements Schematic {
         ImmutableByteArray blockIdPre = nbtTag.getByteArray("Blocks");
         if (blockIdPre == null) throw new NBTException("Invalid Schematic: No Blocks");
         byte[] blockId = blockIdPre.copyArray();
+        if (blockId.length != width * height * length) throw new NBTException("Invalid Schematic: Blocks does not match size");
 
         ImmutableByteArray blocksData = nbtTag.getByteArray("Data");
         if (blocksData == null) throw new NBTException("Invalid Schematic: No Block Data");
@@ -113,26 +92,36 @@ public class MCEditSchematic implements Schematic {
         if (nbtTag.containsKey("AddBlocks")) addId = Objects.requireNonNull(nbtTag.getByteArray("AddBlocks")).copyArray();
         else addId = new byte[0];
 
-        blocks = new short[blockId.length];
+        // Legacy ids are at most 12 bits, collect the distinct ones into the palette
+        int[] paletteIndices = new int[1 << 12];
+        Arrays.fill(paletteIndices, -1);
+        short[] palette = new short[1 << 12];
+        int paletteSize = 0;
+
+        short[] blocks = new short[blockId.length];
         for (int index = 0; index < blockId.length; index++) {
-            if ((index >> 1) >= addId.length) this.blocks[index] = (short) (blockId[index] & 0xFF);
-            else {
-                if ((index & 1) == 0) this.blocks[index] = (short) (((addId[index >> 1] & 0x0F) << 8) + (blockId[index] & 0xFF));
-                else this.blocks[index] = (short) (((addId[index >> 1] & 0xF0) << 4) + (blockId[index] & 0xFF));
+            int id = getBlockId(blockId, addId, index);
+            if (paletteIndices[id] < 0) {
+                paletteIndices[id] = paletteSize;
+                palette[paletteSize++] = (short) id;
             }
+            blocks[index] = (short) paletteIndices[id];
         }
+        this.palette = Arrays.copyOf(palette, paletteSize);
+        setBlocks(blocks);
     }
 
-    public void readBlocks() {
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                for (int z = 0; z < length; ++z) {
-                    int index = y * width * length + z * width + x;
-                    short stateId = this.blocks[index];
-                    regionBlocks.add(new Region.Block(new Pos(x+offsetX, y+offsetY, z+offsetZ), stateId));
-                }
-            }
-        }
+    /**
+     * Gets a legacy block id, combining the Blocks byte with its AddBlocks nibble.
+     * @param blocks The Blocks array.
+     * @param addBlocks The AddBlocks array, empty if the schematic has none.
+     * @param index The block index.
+     * @return The 12 bit block id.
+     */
+    public static int getBlockId(byte @NotNull [] blocks, byte @NotNull [] addBlocks, int index) {
+        if ((index >> 1) >= addBlocks.length) return blocks[index] & 0xFF;
+        if ((index & 1) == 0) return ((addBlocks[index >> 1] & 0x0F) << 8) + (blocks[index] & 0xFF);
+        return ((addBlocks[index >> 1] & 0xF0) << 4) + (blocks[index] & 0xFF);
     }
 
     @Override
@@ -140,69 +129,4 @@ public class MCEditSchematic implements Schematic {
         // TODO: Complete
     }
 
-    @Override
-    public CompletableFuture<Region> build(Instance instance, Point position) {
-        if (!read) throw new IllegalStateException("Schematic not read");
-        CompletableFuture<Region> future = new CompletableFuture<>();
-        CompletableFuture.runAsync(() -> {
-            AbsoluteBlockBatch blockBatch = new AbsoluteBlockBatch();
-
-            List<CompletableFuture<Void>> futures = new ArrayList<>();
-            for (Region.Block regionBlock : regionBlocks) {
-                Pos absoluteBlockPosition = regionBlock.position().add(position);
-                short stateId = regionBlock.stateId();
-
-                Block block = Block.fromStateId(stateId);
-                if (block != null) futures.add(instance.loadOptionalChunk(absoluteBlockPosition).thenRun(() -> blockBatch.setBlock(absoluteBlockPosition, block)));
-            }
-
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[]{})).join();
-            blockBatch.apply(instance, () -> future.complete(new Region(instance, position, position.add(width, height, length))));
-        });
-        return future;
-    }
-
-    @Override
-    public short getWidth() {
-        return width;
-    }
-
-    @Override
-    public short getHeight() {
-        return height;
-    }
-
-    @Override
-    public short getLength() {
-        return length;
-    }
-
-    @Override
-    public int getOffsetX() {
-        return offsetX;
-    }
-
-    @Override
-    public int getOffsetY() {
-        return offsetY;
-    }
-
-    @Override
-    public int getOffsetZ() {
-        return offsetZ;
-    }
-
-    @Override
-    public void apply(Block.@NotNull Setter setter) {
-        for (Region.Block block : regionBlocks) {
-            Pos pos = block.position();
-            Block minestomBlock = Block.fromStateId(block.stateId());
-            if (minestomBlock != null)  {
-                setter.setBlock(pos, minestomBlock);
-            } else {
-                throw new IllegalStateException("Invalid block state id: " + block.stateId());
-            }
-        }
-    }
-
 }
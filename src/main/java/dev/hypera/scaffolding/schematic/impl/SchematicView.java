@@ -0,0 +1,83 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.schematic.impl;
+
+import dev.hypera.scaffolding.region.Region;
+import org.jetbrains.annotations.NotNull;
+import org.jglrxavpok.hephaistos.nbt.NBTCompound;
+
+import java.io.OutputStream;
+
+/**
+ * A schematic sharing the block storage of another schematic, with its own palette or covering only part of it.
+ * <br>
+ * Views are only used to place blocks, they cannot be read or written.
+ */
+final class SchematicView extends AbstractSchematic {
+
+    private final @NotNull AbstractSchematic source;
+
+    SchematicView(@NotNull AbstractSchematic source, short @NotNull [] palette) {
+        this(source, palette, 0, 0, 0, source.width, source.height, source.length);
+    }
+
+    SchematicView(@NotNull AbstractSchematic source, int x, int y, int z, int width, int height, int length) {
+        this(source, source.palette, x, y, z, width, height, length);
+    }
+
+    private SchematicView(@NotNull AbstractSchematic source, short @NotNull [] palette, int x, int y, int z, int width, int height, int length) {
+        this.source = source;
+        this.width = (short) width;
+        this.height = (short) height;
+        this.length = (short) length;
+        // Blocks keep their position relative to where the source is placed
+        this.offsetX = source.offsetX + x;
+        this.offsetY = source.offsetY + y;
+        this.offsetZ = source.offsetZ + z;
+        this.sections = source.sections;
+        this.sectionsX = source.sectionsX;
+        this.sectionsY = source.sectionsY;
+        this.sectionsZ = source.sectionsZ;
+        this.storageX = source.storageX + x;
+        this.storageY = source.storageY + y;
+        this.storageZ = source.storageZ + z;
+        this.storageWidth = source.storageWidth;
+        this.storageHeight = source.storageHeight;
+        this.storageLength = source.storageLength;
+        this.blockIndex = source.blockIndex;
+        this.palette = palette;
+        this.read = true;
+    }
+
+    @Override
+    public void read(@NotNull NBTCompound nbtTag) {
+        throw new UnsupportedOperationException("Schematic views cannot be read");
+    }
+
+    @Override
+    public void write(@NotNull OutputStream outputStream, @NotNull Region region) {
+        // Writing through the source would use its palette and bounds rather than this view's
+        throw new UnsupportedOperationException("Schematic views cannot be written");
+    }
+
+}
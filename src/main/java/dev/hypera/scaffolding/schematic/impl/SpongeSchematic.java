@@ -22,39 +22,26 @@
  */
 package dev.hypera.scaffolding.schematic.impl;
 
-import dev.hypera.scaffolding.schematic.Schematic;
 import dev.hypera.scaffolding.region.Region;
-import net.minestom.server.coordinate.Point;
-import net.minestom.server.coordinate.Pos;
-import net.minestom.server.instance.Instance;
-import net.minestom.server.instance.batch.AbsoluteBlockBatch;
 import net.minestom.server.instance.block.Block;
 import org.jetbrains.annotations.NotNull;
 import org.jglrxavpok.hephaistos.collections.ImmutableByteArray;
 import org.jglrxavpok.hephaistos.nbt.NBTCompound;
 import org.jglrxavpok.hephaistos.nbt.NBTException;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 
 // https://github.com/EngineHub/WorldEdit/blob/303f5a76b2df70d63480f2126c9ef4b228eb3c59/worldedit-core/src/main/java/com/sk89q/worldedit/extent/clipboard/io/SpongeSchematicReader.java#L261-L297
-public class SpongeSchematic implements Schematic {
+public class SpongeSchematic extends AbstractSchematic {
 
-    private final List<Region.Block> regionBlocks = new ArrayList<>();
-
-    private short width;
-    private short height;
-    private short length;
-    private Map<String, Integer> palette = new HashMap<>();
+    private Map<String, Integer> blockPalette = new HashMap<>();
     private byte[] blocksData;
 
-    private boolean read = false;
-
-    private int offsetX;
-    private int offsetY;
-    private int offsetZ;
-
     @Override
     public void read(@NotNull NBTCompound nbtTag) throws NBTException {
         readSizes(nbtTag);
@@ -109,10 +96,10 @@ public class SpongeSchematic implements Schematic {
             Integer value = nbtPalette.getInt(key);
             if (value == null) throw new NBTException("Invalid Schematic: Palette contains invalid value");
 
-            palette.put(key, value);
+            blockPalette.put(key, value);
         }
 
-        palette = palette.entrySet().stream()
+        blockPalette = blockPalette.entrySet().stream()
                 .sorted(Map.Entry.comparingByValue())
                 .collect(LinkedHashMap::new, (map, entry) -> map.put(entry.getKey(), entry.getValue()), LinkedHashMap::putAll);
 
@@ -122,37 +109,24 @@ public class SpongeSchematic implements Schematic {
     }
 
     private void readBlocks() throws NBTException {
-        int index = 0;
-        int i = 0;
-        int value;
-        int varIntLength;
-        List<String> paletteKeys = new ArrayList<>(palette.keySet());
-
-        while (i < this.blocksData.length) {
-            value = 0;
-            varIntLength = 0;
-
-            while (true) {
-                value |= (this.blocksData[i] & 127) << (varIntLength++ * 7);
-                if (varIntLength > 5) throw new NBTException("Invalid Schematic: BlockData has invalid length");
-                if ((this.blocksData[i] & 128) != 128) {
-                    i++;
-                    break;
-                }
-                i++;
-            }
-
-            int x = (index % (width * length)) % width;
-            int y = index / (width * length);
-            int z = (index % (width * length)) / width;
+        this.palette = resolvePalette(blockPalette.keySet());
+
+        short[] blocks = new short[width * height * length];
+        int decoded;
+        try {
+            decoded = readBlockData(new DataInputStream(new ByteArrayInputStream(this.blocksData)), this.blocksData.length,
+                    blocks.length, palette.length, (index, paletteIndex) -> blocks[index] = (short) paletteIndex);
+        } catch (IOException e) {
+            throw new NBTException("Invalid Schematic: BlockData has invalid length");
+        }
 
-            String block = paletteKeys.get(value);
-            short stateId = getStateId(block);
+        // Trailing blocks left out of the block data are air
+        if (decoded < blocks.length) Arrays.fill(blocks, decoded, blocks.length, airIndex());
 
-            this.regionBlocks.add(new Region.Block(new Pos(x + offsetX, y + offsetY, z + offsetZ), stateId));
+        setBlocks(blocks);
 
-            index++;
-        }
+        // The varints are only needed while reading
+        this.blocksData = null;
     }
 
     @Override
@@ -160,35 +134,73 @@ public class SpongeSchematic implements Schematic {
         // TODO: Complete
     }
 
-    @Override
-    public CompletableFuture<Region> build(Instance instance, Point position) {
-        if (!read) throw new IllegalStateException("Schematic not read");
-        CompletableFuture<Region> future = new CompletableFuture<>();
-        CompletableFuture.runAsync(() -> {
-            AbsoluteBlockBatch blockBatch = new AbsoluteBlockBatch();
-
-            List<CompletableFuture<Void>> futures = new ArrayList<>();
-            for (Region.Block regionBlock : regionBlocks) {
-                Pos absoluteBlockPosition = regionBlock.position().add(position);
-                short stateId = regionBlock.stateId();
-
-                Block block = Block.fromStateId(stateId);
-                if (block != null) futures.add(instance.loadOptionalChunk(absoluteBlockPosition).thenRun(() -> blockBatch.setBlock(absoluteBlockPosition, block)));
-            }
+    /**
+     * Gets the palette index of air, adding it to the palette if it is missing.
+     * @return The palette index.
+     */
+    private short airIndex() {
+        short air = Block.AIR.stateId();
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] == air) return (short) i;
+        }
 
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[]{})).join();
-            blockBatch.apply(instance, () -> future.complete(new Region(instance, position, position.add(width, height, length))));
-        });
-        return future;
+        palette = Arrays.copyOf(palette, palette.length + 1);
+        palette[palette.length - 1] = air;
+        return (short) (palette.length - 1);
     }
 
-    private Block getBlock(@NotNull String input) {
+    private static Block getBlock(@NotNull String input) {
         String namespaceId = input.split("\\[")[0];
 
         return Block.fromNamespaceId(namespaceId);
     }
 
-    private short getStateId(@NotNull String input) {
+    /**
+     * Resolves the entries of a Sponge palette to block state ids.
+     * @param entries The palette entries, ordered by palette index.
+     * @return The state ids, indexed by palette index.
+     */
+    public static short @NotNull [] resolvePalette(@NotNull Collection<String> entries) {
+        // Resolve every palette entry once rather than once per block
+        short[] palette = new short[entries.size()];
+        int index = 0;
+        for (String entry : entries) palette[index++] = getStateId(entry);
+        return palette;
+    }
+
+    /**
+     * Decodes Sponge block data, a sequence of varint palette indices.
+     * @param in The stream, positioned at the first byte of the block data.
+     * @param size The length of the block data in bytes.
+     * @param volume The number of blocks in the schematic.
+     * @param paletteSize The number of palette entries.
+     * @param consumer Receives every palette index in order.
+     * @return The number of blocks decoded. Schematics may leave out trailing blocks, so this can be less than the volume.
+     * @throws IOException if the stream could not be read.
+     * @throws NBTException if the block data is invalid.
+     */
+    public static int readBlockData(@NotNull DataInput in, int size, int volume, int paletteSize, @NotNull BlockDataConsumer consumer) throws IOException, NBTException {
+        int index = 0;
+        int read = 0;
+        while (read < size) {
+            int value = 0;
+            int varIntLength = 0;
+            byte b;
+            do {
+                if (read++ >= size) throw new NBTException("Invalid Schematic: BlockData has invalid length");
+                b = in.readByte();
+                value |= (b & 127) << (varIntLength++ * 7);
+                if (varIntLength > 5) throw new NBTException("Invalid Schematic: BlockData has invalid length");
+            } while ((b & 128) == 128);
+
+            if (index >= volume) throw new NBTException("Invalid Schematic: BlockData does not match size");
+            if (value < 0 || value >= paletteSize) throw new NBTException("Invalid Schematic: BlockData contains invalid palette index");
+            consumer.accept(index++, value);
+        }
+        return index;
+    }
+
+    private static short getStateId(@NotNull String input) {
         Block block = getBlock(input);
         if (block == null) return 0;
         String states = input.replaceAll(block.name(), "");
@@ -209,47 +221,19 @@ public class SpongeSchematic implements Schematic {
         } else return block.stateId();
     }
 
-    @Override
-    public short getWidth() {
-        return width;
-    }
-
-    @Override
-    public short getHeight() {
-        return height;
-    }
-
-    @Override
-    public short getLength() {
-        return length;
-    }
-
-    @Override
-    public int getOffsetX() {
-        return offsetX;
-    }
-
-    @Override
-    public int getOffsetY() {
-        return offsetY;
-    }
+    /**
+     * Receives the palette indices decoded by {@link #readBlockData(DataInput, int, int, int, BlockDataConsumer)}.
+     */
+    @FunctionalInterface
+    public interface BlockDataConsumer {
 
-    @Override
-    public int getOffsetZ() {
-        return offsetZ;
-    }
+        /**
+         * Accepts a decoded block.
+         * @param index The block index, in x, z, y order.
+         * @param paletteIndex The palette index of the block.
+         */
+        void accept(int index, int paletteIndex);
 
-    @Override
-    public void apply(@NotNull Block.Setter setter) {
-        for (Region.Block block : regionBlocks) {
-            Pos pos = block.position();
-            Block minestomBlock = Block.fromStateId(block.stateId());
-            if (minestomBlock != null)  {
-                setter.setBlock(pos, minestomBlock);
-            } else {
-                throw new IllegalStateException("Invalid block state id: " + block.stateId());
-            }
-        }
     }
 
 }
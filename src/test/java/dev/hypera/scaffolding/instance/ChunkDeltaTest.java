@@ -0,0 +1,143 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.DynamicChunk;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.instance.block.Block;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Encodes the changes made to a chunk as a delta, and checks that merging the delta back over the template, directly
+ * and through an overlay file, gives the changed chunk.
+ */
+class ChunkDeltaTest {
+
+    private static final int DENSE_CHANGES = 1500;
+    private static final int SPARSE_CHANGES = 40;
+    private static final Block[] BLOCKS = { Block.AIR, Block.STONE, Block.GOLD_BLOCK, Block.DIAMOND_BLOCK };
+
+    private static Instance instance;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void init() {
+        MinecraftServer.init();
+        instance = MinecraftServer.getInstanceManager().createInstanceContainer();
+    }
+
+    @Test
+    void sparseAndDenseSectionsRoundTrip() throws Exception {
+        Random random = new Random(3);
+        ChunkTemplate template = new ChunkTemplate();
+        template.mergeSection(1, randomSection(random));
+        template.mergeSection(2, randomSection(random));
+
+        Chunk chunk = new DynamicChunk(instance, 0, 0);
+        byte[] delta;
+        synchronized (chunk) {
+            template.apply(chunk);
+            // More than 256 changes in section 1 are stored as a bitmask, the few in section 3 as a position list
+            edit(chunk, random, 1, DENSE_CHANGES);
+            edit(chunk, random, 3, SPARSE_CHANGES);
+            delta = ChunkDelta.diff(chunk, template);
+        }
+        assertTrue(delta.length > 0);
+        assertMerges(chunk, template, delta);
+
+        // The delta is stored as is
+        Path path = directory.resolve("overlay.dat");
+        long index = ChunkUtils.getChunkIndex(chunk.getChunkX(), chunk.getChunkZ());
+        ChunkOverlayStore store = ChunkOverlayStore.open(path);
+        store.write(index, delta).join();
+        store.close();
+        assertTrue(store.write(index, delta).isCompletedExceptionally());
+
+        ChunkOverlayStore reopened = ChunkOverlayStore.open(path);
+        try {
+            assertArrayEquals(delta, reopened.get(index));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void unchangedChunkHasEmptyDelta() {
+        Random random = new Random(4);
+        ChunkTemplate template = new ChunkTemplate();
+        template.mergeSection(0, randomSection(random));
+
+        Chunk chunk = new DynamicChunk(instance, 0, 0);
+        synchronized (chunk) {
+            template.apply(chunk);
+            assertArrayEquals(new byte[0], ChunkDelta.diff(chunk, template));
+        }
+    }
+
+    private static void assertMerges(@NotNull Chunk chunk, @NotNull ChunkTemplate template, byte @NotNull [] delta) {
+        int minSection = chunk.getMinSection();
+        short[][] sections = new short[chunk.getMaxSection() - minSection][];
+        for (int i = 0; i < sections.length; i++) sections[i] = template.getSection(minSection + i);
+        ChunkDelta.apply(delta, minSection, sections);
+
+        synchronized (chunk) {
+            for (int i = 0; i < sections.length; i++) {
+                short[] expected = new short[ChunkTemplate.SECTION_SIZE];
+                int baseY = (minSection + i) << 4;
+                for (int index = 0; index < ChunkTemplate.SECTION_SIZE; index++) {
+                    expected[index] = chunk.getBlock(index & 15, baseY + (index >> 8), (index >> 4) & 15).stateId();
+                }
+                assertArrayEquals(expected, sections[i] == null ? new short[ChunkTemplate.SECTION_SIZE] : sections[i]);
+            }
+        }
+    }
+
+    private static void edit(@NotNull Chunk chunk, @NotNull Random random, int sectionY, int changes) {
+        for (int i = 0; i < changes; i++) {
+            Block block = BLOCKS[random.nextInt(BLOCKS.length)];
+            chunk.setBlock(random.nextInt(16), (sectionY << 4) + random.nextInt(16), random.nextInt(16), block);
+        }
+    }
+
+    private static short @NotNull [] randomSection(@NotNull Random random) {
+        short[] stateIds = new short[ChunkTemplate.SECTION_SIZE];
+        for (int index = 0; index < stateIds.length; index++) stateIds[index] = BLOCKS[random.nextInt(BLOCKS.length)].stateId();
+        return stateIds;
+    }
+
+}
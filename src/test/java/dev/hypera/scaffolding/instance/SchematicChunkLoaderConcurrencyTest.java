@@ -0,0 +1,201 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import net.minestom.server.MinecraftServer;
+import net.minestom.server.instance.Chunk;
+import net.minestom.server.instance.Instance;
+import net.minestom.server.instance.block.Block;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Loads and saves overlapping chunks from many threads against one template and overlay, and compares the
+ * results with the same work done serially.
+ */
+class SchematicChunkLoaderConcurrencyTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 64;
+    private static final Block[] EDITS = { Block.AIR, Block.STONE, Block.GOLD_BLOCK, Block.DIAMOND_BLOCK };
+
+    private static Instance instance;
+
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void init() {
+        MinecraftServer.init();
+        instance = MinecraftServer.getInstanceManager().createInstanceContainer();
+    }
+
+    @Test
+    void concurrentLoadsMatchSerialLoads() throws Exception {
+        SchematicWorldTemplate template = template(new Random(1));
+        long[] chunks = template.getChunks().keySet().toLongArray();
+
+        SchematicChunkLoader serial = SchematicChunkLoader.builder().template(template).build();
+        Map<Long, short[]> expected = new ConcurrentHashMap<>();
+        for (long index : chunks) expected.put(index, snapshot(load(serial, index)));
+
+        SchematicChunkLoader loader = SchematicChunkLoader.builder().template(template).build();
+        runConcurrently(thread -> {
+            Random random = new Random(thread);
+            for (int round = 0; round < ROUNDS; round++) {
+                long index = chunks[random.nextInt(chunks.length)];
+                assertArrayEquals(expected.get(index), snapshot(load(loader, index)));
+            }
+        });
+    }
+
+    @Test
+    void concurrentSavesMatchSerialSaves() throws Exception {
+        SchematicWorldTemplate template = template(new Random(2));
+        long[] chunks = template.getChunks().keySet().toLongArray();
+        Path overlay = directory.resolve("overlay.dat");
+
+        // Every thread loads any chunk, but only edits the chunks it owns, so the edits of each chunk are ordered
+        Map<Long, List<Edit>> edits = new ConcurrentHashMap<>();
+        SchematicChunkLoader loader = SchematicChunkLoader.builder().template(template).overlay(overlay).build();
+        runConcurrently(thread -> {
+            Random random = new Random(thread);
+            for (int round = 0; round < ROUNDS; round++) {
+                int chunk = random.nextInt(chunks.length);
+                Chunk loaded = load(loader, chunks[chunk]);
+                if (chunk % THREADS != thread) continue;
+
+                Edit edit = new Edit(random.nextInt(16), random.nextInt(64), random.nextInt(16), EDITS[random.nextInt(EDITS.length)]);
+                edits.computeIfAbsent(chunks[chunk], index -> new ArrayList<>()).add(edit);
+                synchronized (loaded) {
+                    loaded.setBlock(edit.x(), edit.y(), edit.z(), edit.block());
+                }
+                loader.saveChunk(loaded).join();
+            }
+        });
+
+        SchematicChunkLoader serial = SchematicChunkLoader.builder().template(template).build();
+        Map<Long, short[]> expected = new ConcurrentHashMap<>();
+        for (long index : chunks) {
+            Chunk chunk = load(serial, index);
+            synchronized (chunk) {
+                for (Edit edit : edits.getOrDefault(index, List.of())) chunk.setBlock(edit.x(), edit.y(), edit.z(), edit.block());
+            }
+            expected.put(index, snapshot(chunk));
+        }
+
+        for (long index : chunks) assertArrayEquals(expected.get(index), snapshot(load(loader, index)));
+        loader.close();
+
+        // The overlay file holds the same changes
+        SchematicChunkLoader reopened = SchematicChunkLoader.builder().template(template).overlay(overlay).build();
+        try {
+            runConcurrently(thread -> {
+                for (int chunk = thread; chunk < chunks.length; chunk += THREADS) {
+                    assertArrayEquals(expected.get(chunks[chunk]), snapshot(load(reopened, chunks[chunk])));
+                }
+            });
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Compiles a template from overlapping random schematics.
+     */
+    private static @NotNull SchematicWorldTemplate template(@NotNull Random random) throws IOException, NBTException {
+        SchematicWorldTemplate.Builder builder = SchematicWorldTemplate.builder();
+        for (int i = 0; i < 4; i++) {
+            builder.addSchematic(TestSchematics.random(random, 40), random.nextInt(48) - 24, random.nextInt(24), random.nextInt(48) - 24);
+        }
+        return builder.build();
+    }
+
+    private static @NotNull Chunk load(@NotNull SchematicChunkLoader loader, long index) {
+        Chunk chunk = loader.loadChunk(instance, ChunkUtils.getChunkCoordX(index), ChunkUtils.getChunkCoordZ(index)).join();
+        assertNotNull(chunk);
+        return chunk;
+    }
+
+    private static short @NotNull [] snapshot(@NotNull Chunk chunk) {
+        int minY = chunk.getMinSection() * 16;
+        int maxY = chunk.getMaxSection() * 16;
+        short[] stateIds = new short[16 * 16 * (maxY - minY)];
+        int i = 0;
+        synchronized (chunk) {
+            for (int y = minY; y < maxY; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) stateIds[i++] = chunk.getBlock(x, y, z).stateId();
+                }
+            }
+        }
+        return stateIds;
+    }
+
+    private static void runConcurrently(@NotNull Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                int id = thread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    worker.run(id);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private record Edit(int x, int y, int z, @NotNull Block block) {}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import dev.hypera.scaffolding.schematic.Schematic;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minestom.server.utils.chunk.ChunkUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the parallel, per column compilation of templates with merging every schematic serially in the order it
+ * was added.
+ */
+class SchematicWorldTemplateTest {
+
+    private static final int ITERATIONS = 20;
+    private static final int SCHEMATICS = 6;
+
+    @Test
+    void parallelCompilationMatchesSerialCompilation() throws Exception {
+        Random random = new Random(5);
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            SchematicWorldTemplate.Builder builder = SchematicWorldTemplate.builder().offset(3, -7, 11);
+            Long2ObjectMap<ChunkTemplate> expected = new Long2ObjectOpenHashMap<>();
+            for (int i = 0; i < SCHEMATICS; i++) {
+                Schematic schematic = TestSchematics.random(random, 40);
+                int x = random.nextInt(60) - 30;
+                int y = random.nextInt(20);
+                int z = random.nextInt(60) - 30;
+                builder.addSchematic(schematic, x, y, z);
+                schematic.forEachSection(3 + x, -7 + y, 11 + z, (sectionX, sectionY, sectionZ, stateIds) ->
+                        expected.computeIfAbsent(ChunkUtils.getChunkIndex(sectionX, sectionZ), index -> new ChunkTemplate())
+                                .mergeSection(sectionY, stateIds));
+            }
+            SchematicWorldTemplate template = builder.build();
+
+            assertEquals(expected.keySet(), template.getChunks().keySet());
+            for (Long2ObjectMap.Entry<ChunkTemplate> entry : expected.long2ObjectEntrySet()) {
+                ChunkTemplate serial = entry.getValue();
+                ChunkTemplate parallel = template.getChunk(entry.getLongKey());
+                int minSection = Math.min(serial.getMinSection(), parallel.getMinSection());
+                int maxSection = Math.max(serial.getMaxSection(), parallel.getMaxSection());
+                for (int sectionY = minSection; sectionY < maxSection; sectionY++) {
+                    assertArrayEquals(serial.getSection(sectionY), parallel.getSection(sectionY));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Scaffolding - Schematic library for Minestom
+ *  Copyright (c) 2022 SLLCoding <luisjk266@gmail.com>
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the “Software”), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in
+ *  all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package dev.hypera.scaffolding.instance;
+
+import dev.hypera.scaffolding.Scaffolding;
+import dev.hypera.scaffolding.schematic.Schematic;
+import org.jetbrains.annotations.NotNull;
+import org.jglrxavpok.hephaistos.nbt.NBTException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Creates random Sponge schematics, read through {@link Scaffolding#fromStream} like schematic files.
+ */
+final class TestSchematics {
+
+    private static final int TAG_END = 0;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_COMPOUND = 10;
+
+    private static final String[] BLOCKS = {
+            "minecraft:air", "minecraft:stone", "minecraft:dirt", "minecraft:glass", "minecraft:oak_planks"
+    };
+
+    private TestSchematics() {}
+
+    /**
+     * Creates a schematic of random size and contents, about a fifth of which is air.
+     * @param random The random source.
+     * @param maxSize The maximum width, height and length.
+     * @return The schematic.
+     */
+    static @NotNull Schematic random(@NotNull Random random, int maxSize) throws IOException, NBTException {
+        int width = 1 + random.nextInt(maxSize);
+        int height = 1 + random.nextInt(maxSize);
+        int length = 1 + random.nextInt(maxSize);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("Schematic");
+            writeInt(out, "Version", 2);
+            writeShort(out, "Width", width);
+            writeShort(out, "Height", height);
+            writeShort(out, "Length", length);
+
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("Metadata");
+            writeInt(out, "WEOffsetX", 0);
+            writeInt(out, "WEOffsetY", 0);
+            writeInt(out, "WEOffsetZ", 0);
+            out.writeByte(TAG_END);
+
+            writeInt(out, "PaletteMax", BLOCKS.length);
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF("Palette");
+            for (int i = 0; i < BLOCKS.length; i++) writeInt(out, BLOCKS[i], i);
+            out.writeByte(TAG_END);
+
+            // Every palette index is below 128, so each varint is a single byte
+            out.writeByte(TAG_BYTE_ARRAY);
+            out.writeUTF("BlockData");
+            out.writeInt(width * height * length);
+            for (int i = 0; i < width * height * length; i++) out.writeByte(random.nextInt(BLOCKS.length));
+
+            out.writeByte(TAG_END);
+        }
+        return Objects.requireNonNull(Scaffolding.fromStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static void writeShort(@NotNull DataOutputStream out, @NotNull String name, int value) throws IOException {
+        out.writeByte(TAG_SHORT);
+        out.writeUTF(name);
+        out.writeShort(value);
+    }
+
+    private static void writeInt(@NotNull DataOutputStream out, @NotNull String name, int value) throws IOException {
+        out.writeByte(TAG_INT);
+        out.writeUTF(name);
+        out.writeInt(value);
+    }
+
+}